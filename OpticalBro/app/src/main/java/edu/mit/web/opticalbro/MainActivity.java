@@ -17,6 +17,7 @@ import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ImageFormat;
 import android.graphics.Paint;
 import android.graphics.RectF;
 import android.graphics.Typeface;
@@ -34,6 +35,17 @@ import org.opencv.core.Core;
 import org.opencv.core.Mat;
 //import org.opencv.core.Core;
 
+import edu.mit.web.opticalbro.flow.ColorConversion;
+import edu.mit.web.opticalbro.flow.FlowField;
+import edu.mit.web.opticalbro.flow.FlowProcessor;
+import edu.mit.web.opticalbro.flow.FrameBufferPool;
+import edu.mit.web.opticalbro.flow.FrameRecorder;
+import edu.mit.web.opticalbro.flow.HornSchunckEngine;
+import edu.mit.web.opticalbro.flow.LatencyHistogram;
+import edu.mit.web.opticalbro.flow.PipelineTimings;
+import edu.mit.web.opticalbro.flow.SparseLucasKanade;
+
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -45,6 +57,25 @@ public class MainActivity extends Activity
     protected static Camera mCamera = null;
     int nPixels = 240 * 320;            // approx number of pixels desired in preview
     int downscalingFactor = 4;          // factor for downsampling the image after capture but prior to processing; the resolution will be divided by this number in each dimension
+    HornSchunckEngine.Downsampling downsampling = HornSchunckEngine.Downsampling.BOX;  // POINT is cheaper but aliases
+    int nPreviewBuffers = 4;            // preview buffers cycling between camera and flow processing
+    int nFlowThreads = 1;               // > 1 stripes the iterations over threads: opt in only where measured faster,
+                                        // as an 80x60 grid crosses 8+ barriers a frame (up to availableProcessors())
+    int nPyramidLevels = 1;             // > 1 solves the flow coarse-to-fine, for fast motion
+    int nPyramidIterations = 2;         // Horn-Schunck iterations per pyramid level
+    boolean bWarmStart = false;         // start each frame's iterations from the previous flow
+    float warmStartDecay = 0.9f;        // ... multiplied by this
+    HornSchunckEngine.Solver flowSolver = HornSchunckEngine.Solver.JACOBI;  // FIXED_POINT for slow-FPU phones
+    float sorRelaxation = 1.8f;         // over-relaxation factor for RED_BLACK_SOR
+    float frameIntervalSmoothing = 0f;  // > 0 averages the time between frames that scales E_t
+    boolean bSparseFlow = false;        // Lucas-Kanade at the arrow points only, instead of dense Horn-Schunck
+    int nArrowColumns = 4;              // sample grid for bSparseFlow (the dense arrows are always 4 x 3)
+    int nArrowRows = 3;
+    boolean bPipelineTimings = true;    // per stage latency histograms, shown on screen
+    int timingsLogSeconds = 10;         // dump them to the log this often (0 = never)
+    boolean bRecordFrames = false;      // record the downscaled Y plane of preview frames for FlowCli
+    int nRecordFrames = 900;            // most frames recorded (a minute at 15 fps)
+    int nRecordSlots = 8;               // frames buffered between camera callback and disk
     protected static int mCameraHeight;   // preview height (determined later)
     protected static int mCameraWidth;    // preview width
     protected static Preview mPreview;
@@ -55,10 +86,6 @@ public class MainActivity extends Activity
     static boolean bDisplayInfoFlag = true;	// show info about display  in log file
     static boolean nCameraInfoFlag = true;	// show info about cameras in log file
 
-    long timeSinceLastFrame = 0;
-    long timeOfLastFrame = System.currentTimeMillis();
-    float fps;
-
     @Override
     protected void onCreate (Bundle savedInstanceState)
     {
@@ -179,10 +206,7 @@ public class MainActivity extends Activity
     class DrawOnTop extends View
     {
         Bitmap mBitmap;
-        byte[] mYUVData;
         int[] mRGBData;
-        int[][] mGrayscaleData;
-        int[][] mPrevGrayscaleData;
         int mImageWidth, mImageHeight;
         Paint mPaintBlack;
         Paint mPaintYellow;
@@ -193,20 +217,10 @@ public class MainActivity extends Activity
         int mLeading;			// spacing between text lines
         String TAG = "DrawOnTop";       // for logcat output
 
-        // Derivatives of brightness in x, y, and time
-        int[][] E_x;
-        int[][] E_y;
-        int[][] E_t;
-
-        // optical flow in the x and y directions
-        float u[][];
-        float v[][];
-        // optical flow local average (used in intermediate computation)
-        float uAvg[][];
-        float vAvg[][];
-
-        // play around with this value
-        float lambda = 5.0f;
+        // gradients and Horn-Schunck optical flow, computed on a worker thread
+        // (set up later in Preview - setupArrays)
+        FlowProcessor mFlowProcessor;
+        float[] mArrowFlow = new float[2];  // scratch for drawArrow
 
         public DrawOnTop (Context context)
         { // constructor
@@ -219,9 +233,8 @@ public class MainActivity extends Activity
             mPaintBlue = makePaint(Color.BLUE);
 
             mBitmap = null;	// will be set up later in Preview - PreviewCallback
-            mYUVData = null;
             mRGBData = null;
-            mGrayscaleData = null;
+            mFlowProcessor = null;
             if (DBG) Log.i(TAG, "DrawOnTop textsize " + mTextsize);
             mLeading = mTextsize * 6 / 5;    // adjust line spacing
             if (DBG) Log.i(TAG, "DrawOnTop Leading " + mLeading);
@@ -244,90 +257,20 @@ public class MainActivity extends Activity
         protected void onDraw (Canvas canvas)
         {
             String TAG="onDraw";
-            if (mBitmap == null) {	// sanity check
-                Log.w(TAG, "mBitMap is null");
+            long drawStart = System.nanoTime();
+            if (mBitmap == null || mFlowProcessor == null) {	// sanity check
+                if (mBitmap == null) Log.w(TAG, "mBitMap is null");
+                if (mFlowProcessor == null) Log.w(TAG, "mFlowProcessor is null");
                 super.onDraw(canvas);
                 return;	// because not yet set up
             }
 
-            // Convert image from YUV to RGB format:
-            //decodeYUV420SP(mRGBData, mYUVData, mImageWidth, mImageHeight);
-            // Currently using the "grayscale" version
-            decodeYUV420SPGrayscale(mGrayscaleData, mYUVData, mImageWidth, mImageHeight);
-
-            // Now do some image processing here:
-            // Calculate the FPS
-            timeSinceLastFrame = System.currentTimeMillis() - timeOfLastFrame;
-            timeOfLastFrame = System.currentTimeMillis();
-            fps = 1000f / timeSinceLastFrame;
-
-            //Mat mat1 = Mat();
-            //mat1.put(0,0,mGrayscaleData[0]);
-
-            // Calculate the brightness gradient in X, Y, and time
-            for (int j = 0; j < mImageHeight - 1; j++) {
-                for (int i = 0; i < mImageWidth - 1; i++) {
-                    // units are [greyscale_value per pixel]
-                    E_x[j][i] = (mPrevGrayscaleData[j][i+1]
-                            + mGrayscaleData[j][i+1]
-                            + mPrevGrayscaleData[j+1][i+1]
-                            + mGrayscaleData[j+1][i+1]
-                            - mPrevGrayscaleData[j][i]
-                            - mGrayscaleData[j][i]
-                            - mPrevGrayscaleData[j+1][i]
-                            - mGrayscaleData[j+1][i])>>2;
-                    E_y[j][i] = (mPrevGrayscaleData[j+1][i]
-                            + mGrayscaleData[j+1][i]
-                            + mPrevGrayscaleData[j+1][i+1]
-                            + mGrayscaleData[j+1][i+1]
-                            - mPrevGrayscaleData[j][i]
-                            - mGrayscaleData[j][i]
-                            - mPrevGrayscaleData[j][i+1]
-                            - mGrayscaleData[j][i+1])>>2;
-                    // units are [greyscale_value per second)
-                    E_t[j][i] = (int)(fps*((mGrayscaleData[j][i]
-                            + mGrayscaleData[j+1][i]
-                            + mGrayscaleData[j][i+1]
-                            + mGrayscaleData[j+1][i+1]
-                            - mPrevGrayscaleData[j][i]
-                            - mPrevGrayscaleData[j+1][i]
-                            - mPrevGrayscaleData[j][i+1]
-                            - mPrevGrayscaleData[j+1][i+1])>>2));
-                }
-            }
-
-
-            // todo: move the following optical flow code into its own method
-            
-            // Initialize the guesses for optical flow as 0 everywhere
-            u = new float[mImageHeight-1][mImageWidth-1];
-            v = new float[mImageHeight-1][mImageWidth-1];
-            uAvg = new float[mImageHeight-1][mImageWidth-1];
-            vAvg = new float[mImageHeight-1][mImageWidth-1];
-
-            // Calculate the optical flow using an iterative scheme
-            for (int iterations = 0; iterations < 4; iterations++) {
-                // first, calculate the averages
-                for (int j = 0; j < mImageHeight-1; j++) {
-                    for (int i = 0; i < mImageWidth-1; i++) {
-                        uAvg[j][i] = getNeighborAverage(u, i, j, mImageWidth-1, mImageHeight-1);
-                        vAvg[j][i] = getNeighborAverage(v, i, j, mImageWidth-1, mImageHeight-1);
-                    }
-                }
-
-                // Then, calculate the new estimate for the velocities
-                for (int j = 0; j < mImageHeight-1; j++) {
-                    for (int i = 0; i < mImageWidth-1; i++) {
-                        float adjustment = (E_x[j][i] * uAvg[j][i] + E_y[j][i] * vAvg[j][i] + E_t[j][i]) / (1 + lambda * ((float)Math.pow(E_x[j][i], 2) + (float)Math.pow(E_y[j][i],2)));
-                        u[j][i] = uAvg[j][i] - E_x[j][i] * adjustment;
-                        v[j][i] = vAvg[j][i] - E_y[j][i] * adjustment;
-                    }
-                }
-            }
-
-            // copy the new data to mPrevGrayscaleData for use in the next frame
-            for (int j = 0; j < mImageHeight; j++) {
-                System.arraycopy(mGrayscaleData[j], 0, mPrevGrayscaleData[j], 0, mImageWidth);
+            // Image processing happens on the FlowProcessor worker thread;
+            // here we only render its most recent result
+            FlowField flow = mFlowProcessor.getLatestFlowField();
+            if (flow == null) {	// no frame processed yet
+                super.onDraw(canvas);
+                return;
             }
 
             // Finally, use the results to draw things on top of screen:
@@ -336,18 +279,25 @@ public class MainActivity extends Activity
             int newImageWidth = canvasWidth - 200;
             int marginWidth = (canvasWidth - newImageWidth) / 2;
 
-            for(float x = mCameraWidth/downscalingFactor/8; x<mCameraWidth/downscalingFactor;
+            HornSchunckEngine engine = mFlowProcessor.getEngine();
+            if (engine instanceof SparseLucasKanade) {  // flow only exists at its points
+                SparseLucasKanade sparse = (SparseLucasKanade) engine;
+                for (int k = 0; k < sparse.getPointCount(); k++)
+                    drawArrow(canvas, flow, sparse.getPointX(k), sparse.getPointY(k), mPaintGreen);
+            }
+            else for(float x = mCameraWidth/downscalingFactor/8; x<mCameraWidth/downscalingFactor;
                 x+=(mCameraWidth/downscalingFactor)/4) {
                 for(float y = mCameraHeight/downscalingFactor/6; y<mCameraHeight/downscalingFactor;
                     y+=(mCameraHeight/downscalingFactor)/3) {
-                    drawArrow(canvas, x, y, u, v,mPaintGreen);
+                    drawArrow(canvas, flow, x, y, mPaintGreen);
                 }
             }
 
             // Uncomment below line to draw the x gradient on top of the image
+            // (debugging only: reads the engine while the worker thread may be updating it)
 /*
             int[] E_x1D = new int[(mImageHeight - 1) * (mImageWidth - 1)];
-            reshapeTo1DandThreshold(E_x, E_x1D, (mImageWidth - 1), (mImageHeight - 1));
+            threshold(mFlowProcessor.getEngine().getEx(), E_x1D, (mImageWidth - 1), (mImageHeight - 1));
 
             Bitmap gradientBitmap = Bitmap.createBitmap(E_x1D, mImageWidth-1, mImageHeight-1, Bitmap.Config.ARGB_8888);
 
@@ -356,56 +306,27 @@ public class MainActivity extends Activity
             canvas.drawBitmap(gradientBitmap, imageRect, canvasRect, null);*/
 
 
-            String imageFrameRateStr = "Frame Rate: " + String.format("%4d", (int) fps);
-            drawTextOnBlack(canvas, imageFrameRateStr, marginWidth+10, mLeading, mPaintYellow);
+            PipelineTimings timings = mFlowProcessor.getTimings();
+            if (timings != null) {
+                // frames over the last second and 95th percentile of the work on a frame
+                LatencyHistogram solve = timings.getHistogram(PipelineTimings.Stage.SOLVE);
+                String timingStr = String.format("Frame Rate: %4d  solve p95 %5.1f ms",
+                        Math.round(timings.getFrameRate(drawStart)), solve.getValueAtPercentile(95) / 1e6);
+                drawTextOnBlack(canvas, timingStr, marginWidth+10, mLeading, mPaintYellow);
+            }
 
             super.onDraw(canvas);
+            if (timings != null) {
+                long now = System.nanoTime();
+                timings.record(PipelineTimings.Stage.RENDER, now - drawStart);
+                if (timings.isDumpDue(now)) Log.i(TAG, timings.summary());
+            }
 
         } // end onDraw method
 
         public void decodeYUV420SP (int[] rgb, byte[] yuv420sp, int width, int height)
         { // convert image in YUV420SP format to RGB format
-            final int frameSize = width * height;
-
-            for (int j = 0, pix = 0; j < height; j++) {
-                int uvp = frameSize + (j >> 1) * width;	// index to start of u and v data for this row
-                int u = 0, v = 0;
-                for (int i = 0; i < width; i++, pix++) {
-                    int y = (0xFF & ((int) yuv420sp[pix])) - 16;
-                    if (y < 0) y = 0;
-                    if ((i & 1) == 0) { // even row & column (u & v are at quarter resolution of y)
-                        v = (0xFF & yuv420sp[uvp++]) - 128;
-                        u = (0xFF & yuv420sp[uvp++]) - 128;
-                    }
-
-                    int y1192 = 1192 * y;
-                    int r = (y1192 + 1634 * v);
-                    int g = (y1192 - 833 * v - 400 * u);
-                    int b = (y1192 + 2066 * u);
-
-                    if (r < 0) r = 0;
-                    else if (r > 0x3FFFF) r = 0x3FFFF;
-                    if (g < 0) g = 0;
-                    else if (g > 0x3FFFF) g = 0x3FFFF;
-                    if (b < 0) b = 0;
-                    else if (b > 0x3FFFF) b = 0x3FFFF;
-
-                    rgb[pix] = 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
-                }
-            }
-        }
-
-        public void decodeYUV420SPGrayscale (int[][] greyscale, byte[] yuv420sp, int width, int height)
-        { // extract grey RGB format image --- not used currently
-            final int frameSize = width * height;
-
-            // This is much simpler since we can ignore the u and v components
-            for (int j = 0, pix = 0; j < height; j++) {
-                for (int i = 0; i < width; i++, pix += downscalingFactor) {
-                    greyscale[j][i] = (0xFF & ((int) yuv420sp[pix])); // this is y
-                }
-                pix += (downscalingFactor - 1) * width;
-            }
+            ColorConversion.decodeYUV420SP(rgb, yuv420sp, width, height);
         }
 
         public void reshapeTo2D (int[] rgb, int[][] greyscale, int width, int height) {
@@ -418,45 +339,14 @@ public class MainActivity extends Activity
 
         //returns 1D array that visually represents the brightness gradient
         public void reshapeTo1DandThreshold (int[][] srcArray, int[] dstArray, int width, int height) {
-            for (int j = 0, pix = 0; j < height; j++) {
-                for (int i = 0; i < width; i++, pix++) {
-                    if(srcArray[j][i]<-20){ //below this threshold, color pixel red
-                        dstArray[pix] = 0xffff0000;
-                    }
-                    else if (srcArray[j][i]>20){ //above this threshold, color pixel green
-                        dstArray[pix] = 0xff00ff00;
-                    }
-                    //dstArray[pix] = srcArray[j][i];
-                }
-            }
+            ColorConversion.reshapeTo1DandThreshold(srcArray, dstArray, width, height);
         }
 
-        // get the average of the pixels above, below, left, and right
-        // or a limited set of those if it's an edge pixel
-        public float getNeighborAverage(float[][] array, int i, int j, int width, int height){
-            int neighborCount = 0;
-            int neighborSum = 0;
-            // For each neighbor, check if it's possible for that neighbor to exist
-            if (i > 0) {
-                neighborCount++;
-                neighborSum += array[j][i-1];
-            }
-            if (j > 0) {
-                neighborCount++;
-                neighborSum += array[j-1][i];
-            }
-            if (i < width - 1) {
-                neighborCount++;
-                neighborSum += array[j][i+1];
-            }
-            if (j < height - 1) {
-                neighborCount++;
-                neighborSum += array[j+1][i];
-            }
-            return ((float)neighborSum / neighborCount);
+        // same as reshapeTo1DandThreshold, for the flat arrays used by the flow engine
+        public void threshold (int[] srcArray, int[] dstArray, int width, int height) {
+            ColorConversion.threshold(srcArray, dstArray, width, height);
         }
 
-
         private void drawTextOnBlack (Canvas canvas, String str, int rPos, int cPos, Paint mPaint)
         { // make text stand out from background by providing thin black border
             canvas.drawText(str, rPos - 1, cPos - 1, mPaintBlack);
@@ -469,25 +359,11 @@ public class MainActivity extends Activity
 
 
         //this class draws an arrow to represent a velocity at a certain point
-        private void drawArrow(Canvas canvas, float x, float y, float[][] u, float[][] v, Paint paint) {
-            double avg_xvel = (u[(int)y][(int)x]
-                    +u[(int)y-1][(int)x]
-                    +u[(int)y+1][(int)x]
-                    +u[(int)y][(int)x-1]
-                    +u[(int)y][(int)x+1]
-                    +u[(int)y-1][(int)x-1]
-                    +u[(int)y-1][(int)x+1]
-                    +u[(int)y+1][(int)x-1]
-                    +u[(int)y+1][(int)x+1])/9;
-            double avg_yvel = (v[(int)y][(int)x]
-                    +v[(int)y-1][(int)x]
-                    +v[(int)y+1][(int)x]
-                    +v[(int)y][(int)x-1]
-                    +v[(int)y][(int)x+1]
-                    +v[(int)y-1][(int)x-1]
-                    +v[(int)y-1][(int)x+1]
-                    +v[(int)y+1][(int)x-1]
-                    +v[(int)y+1][(int)x+1])/9;
+        private void drawArrow(Canvas canvas, FlowField flow, float x, float y, Paint paint) {
+            // flow averaged over the 3x3 neighbourhood of (x, y)
+            flow.getAverageFlow((int)x, (int)y, mArrowFlow);
+            double avg_xvel = mArrowFlow[0];
+            double avg_yvel = mArrowFlow[1];
 
             float mag = 5.0f*(float)Math.sqrt(Math.pow(avg_xvel,2.0) + Math.pow(avg_yvel,2.0)); //hold magnitude of arrow
             //float mag = 50.0f;
@@ -529,6 +405,8 @@ public class MainActivity extends Activity
     {	// deal with preview that will be shown on screen
         SurfaceHolder mHolder;
         DrawOnTop mDrawOnTop;
+        FrameRecorder mFrameRecorder;   // null unless bRecordFrames
+        PreviewCallback mPreviewCallback;
         boolean mFinished;
         String TAG="PreView";	// tag for LogCat
 
@@ -550,7 +428,6 @@ public class MainActivity extends Activity
         public void surfaceCreated (SurfaceHolder holder)
         {
             String TAG="surfaceCreated";
-            PreviewCallback mPreviewCallback;
             if (mCamera == null) {	// sanity check
                 Log.e(TAG, "ERROR: camera not open");
                 System.exit(0);
@@ -571,19 +448,22 @@ public class MainActivity extends Activity
             mPreviewCallback = new PreviewCallback() {
                 public void onPreviewFrame(byte[] data, Camera camera) { // callback
                     String TAG = "onPreviewFrame";
+                    long captured = System.nanoTime();  // E_t is scaled by the time between captures
                     if ((mDrawOnTop == null) || mFinished) return;
-                    if (mDrawOnTop.mBitmap == null)  // need to initialize the drawOnTop companion?
-                        setupArrays(data, camera);
-                    // Pass YUV image data to draw-on-top companion
-                    System.arraycopy(data, 0, mDrawOnTop.mYUVData, 0, data.length);
-                    mDrawOnTop.invalidate();
+                    // data is one of our pool buffers (set up in setupArrays); hand it to the
+                    // processing stage without copying. It goes back to the camera once processed
+                    // (or dropped), and the draw-on-top companion is invalidated when flow is ready.
+                    // The recorder copies what it needs first (or drops the frame), never blocking
+                    if (mFrameRecorder != null) mFrameRecorder.record(data, mCameraWidth);
+                    mDrawOnTop.mFlowProcessor.submit(data, captured);
                 }
             };
 
             try {
                 mCamera.setPreviewDisplay(holder);
-                // Preview callback will be used whenever new viewfinder frame is available
-                mCamera.setPreviewCallback(mPreviewCallback);
+                // Preview callback will be used whenever new viewfinder frame is available,
+                // filling the buffers we give the camera with addCallbackBuffer (see setupArrays)
+                mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
             }
             catch (IOException e) {
                 Log.e(TAG, "ERROR: surfaceCreated - IOException " + e);
@@ -597,6 +477,7 @@ public class MainActivity extends Activity
             String TAG="surfaceDestroyed";
             // Surface will be destroyed when we return, so stop the preview.
             mFinished = true;
+            stopProcessing();
             if (mCamera != null) {	// not expected
                 Log.e(TAG, "ERROR: camera still open");
                 mCamera.setPreviewCallback(null);
@@ -630,30 +511,113 @@ public class MainActivity extends Activity
                 Log.e(TAG, "ERROR: setParameters exception " + e);
                 System.exit(0);
             }
+            setupArrays(mCamera);   // includes the preview buffers, needed before frames can arrive
             mCamera.startPreview();
         }
 
-        private void setupArrays (byte[] data, Camera camera)
+        private void setupArrays (final Camera camera)
         {
             String TAG="setupArrays";
             if (DBG) Log.i(TAG, "Setting up arrays");
+            // in case the surface changed again: take the old pool's buffers out of the camera's
+            // queue before its processor stops, so no old buffer reaches the new processor
+            camera.setPreviewCallbackWithBuffer(null);
+            stopProcessing();
             Camera.Parameters params = camera.getParameters();
-            mDrawOnTop.mImageHeight = params.getPreviewSize().height / downscalingFactor;
-            mDrawOnTop.mImageWidth = params.getPreviewSize().width / downscalingFactor;
+            Camera.Size previewSize = params.getPreviewSize();
+            mDrawOnTop.mImageHeight = previewSize.height / downscalingFactor;
+            mDrawOnTop.mImageWidth = previewSize.width / downscalingFactor;
             if (DBG) Log.i(TAG, "height " + mDrawOnTop.mImageHeight + " width " + mDrawOnTop.mImageWidth);
             mDrawOnTop.mBitmap = Bitmap.createBitmap(mDrawOnTop.mImageWidth,
                     mDrawOnTop.mImageHeight, Bitmap.Config.RGB_565);
             mDrawOnTop.mRGBData = new int[mDrawOnTop.mImageWidth * mDrawOnTop.mImageHeight];
-            mDrawOnTop.mGrayscaleData = new int[mDrawOnTop.mImageHeight][mDrawOnTop.mImageWidth];
-            mDrawOnTop.mPrevGrayscaleData = new int[mDrawOnTop.mImageHeight][mDrawOnTop.mImageWidth];
-            mDrawOnTop.E_x = new int[mDrawOnTop.mImageHeight - 1][mDrawOnTop.mImageWidth - 1];
-            mDrawOnTop.E_y = new int[mDrawOnTop.mImageHeight - 1][mDrawOnTop.mImageWidth - 1];
-            mDrawOnTop.E_t = new int[mDrawOnTop.mImageHeight - 1][mDrawOnTop.mImageWidth - 1];
-            if (DBG) Log.i(TAG, "data length " + data.length); // should be width*height*3/2 for YUV format
-            mDrawOnTop.mYUVData = new byte[data.length];
+            // size of one preview frame: width*height*3/2 for the default NV21 (YUV420SP) format
+            int dataLength = previewSize.width * previewSize.height
+                    * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
+            if (DBG) Log.i(TAG, "data length " + dataLength);
             int dataLengthExpected = downscalingFactor * downscalingFactor * mDrawOnTop.mImageWidth * mDrawOnTop.mImageHeight * 3 / 2;
-            if (data.length != dataLengthExpected)
-                Log.e(TAG, "ERROR: data length mismatch "+data.length+" vs "+dataLengthExpected);
+            if (dataLength != dataLengthExpected)
+                Log.e(TAG, "ERROR: data length mismatch "+dataLength+" vs "+dataLengthExpected);
+            // all frame and flow buffers are allocated here once, not per frame
+            FrameBufferPool pool = new FrameBufferPool(nPreviewBuffers, dataLength);
+            HornSchunckEngine engine;
+            if (bSparseFlow) {
+                SparseLucasKanade sparse = new SparseLucasKanade(mDrawOnTop.mImageWidth,
+                        mDrawOnTop.mImageHeight, downscalingFactor);
+                sparse.setGrid(nArrowColumns, nArrowRows);
+                engine = sparse;
+            }
+            else {
+                // the solver settings only mean something to the dense engine; on the sparse
+                // one setThreadCount() would start stripe workers that never get a frame
+                engine = new HornSchunckEngine(mDrawOnTop.mImageWidth,
+                        mDrawOnTop.mImageHeight, downscalingFactor);
+                engine.setThreadCount(nFlowThreads);
+                engine.setPyramid(nPyramidLevels, nPyramidIterations);
+                engine.setWarmStart(bWarmStart, warmStartDecay);
+                engine.setSolver(flowSolver);
+                engine.setRelaxation(sorRelaxation);
+            }
+            engine.setDownsampling(downsampling);
+            engine.setIntervalSmoothing(frameIntervalSmoothing);
+            engine.setNominalFrameRate(15);     // as asked of the camera in surfaceChanged
+            if (DBG) Log.i(TAG, "flow threads " + engine.getThreadCount());
+            mDrawOnTop.mFlowProcessor = new FlowProcessor(engine, pool, previewSize.width);
+            if (bPipelineTimings) {
+                PipelineTimings timings = new PipelineTimings();
+                timings.setDumpInterval(timingsLogSeconds * 1000000000L);
+                mDrawOnTop.mFlowProcessor.setTimings(timings);
+            }
+            mDrawOnTop.mFlowProcessor.setListener(new FlowProcessor.Listener() {
+                public void onFlowFieldReady (FlowProcessor processor) {
+                    mDrawOnTop.postInvalidate();    // redraw on the UI thread
+                }
+            });
+            mDrawOnTop.mFlowProcessor.start();
+            if (bRecordFrames) startRecording(previewSize.width, previewSize.height);
+            // free buffers go (back) into the camera's queue, then frames can come in again
+            camera.setPreviewCallbackWithBuffer(mPreviewCallback);
+            pool.setSink(new FrameBufferPool.Sink() {
+                public void addBuffer (byte[] buffer) {
+                    camera.addCallbackBuffer(buffer);
+                }
+            });
+        }
+
+        private void startRecording (int width, int height)
+        {
+            String TAG="startRecording";
+            File file = new File(getContext().getExternalFilesDir(null),
+                    "preview-" + System.currentTimeMillis() + ".nv21");
+            try {
+                mFrameRecorder = new FrameRecorder(file, width, height, downscalingFactor,
+                        15, nRecordFrames, nRecordSlots);
+                mFrameRecorder.setDownsampling(downsampling);   // what the engine sees
+                mFrameRecorder.start();
+                if (DBG) Log.i(TAG, "recording to " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "ERROR: can't record to " + file + " - " + e);
+                mFrameRecorder = null;
+            }
+        }
+
+        private void stopProcessing ()
+        { // stop the processing thread and the solver's worker threads
+            if (mFrameRecorder != null) {   // write out what is still queued
+                try {
+                    mFrameRecorder.stop();
+                } catch (IOException e) {
+                    Log.e(TAG, "ERROR: recording failed - " + e);
+                }
+                if (DBG) Log.i(TAG, "recorded " + mFrameRecorder.getWrittenFrames() + " frames, dropped "
+                        + mFrameRecorder.getDroppedFrames());
+                mFrameRecorder = null;
+            }
+            if (mDrawOnTop.mFlowProcessor == null) return;
+            // buffers still with the processor stay in its pool instead of going to the camera
+            mDrawOnTop.mFlowProcessor.getPool().setSink(null);
+            mDrawOnTop.mFlowProcessor.stop();
+            mDrawOnTop.mFlowProcessor.getEngine().shutdown();
         }
 
     }
@@ -0,0 +1,41 @@
+// Test input for the benchmarks: a smooth random texture moving right one pixel per frame,
+// as full size YUV420SP frames (Y plane plus neutral chroma).
+
+package edu.mit.web.opticalbro.flow;
+
+import java.util.Random;
+
+final class BenchmarkFrames
+{
+    private BenchmarkFrames () {}
+
+    // "320x240" -> {320, 240}
+    static int[] parseResolution (String resolution)
+    {
+        int x = resolution.indexOf('x');
+        return new int[] {Integer.parseInt(resolution.substring(0, x)),
+                Integer.parseInt(resolution.substring(x + 1))};
+    }
+
+    static byte[] frame (int width, int height, int shift, long seed)
+    {
+        Random random = new Random(seed);
+        int period = 64;
+        int[] noise = new int[period * period];
+        for (int k = 0; k < noise.length; k++) noise[k] = random.nextInt(256);
+        byte[] yuv = new byte[width * height * 3 / 2];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int x = i - shift;
+                // 2x2 box blur of the tiled noise keeps gradients moderate
+                int sum = 0;
+                for (int dj = 0; dj < 2; dj++)
+                    for (int di = 0; di < 2; di++)
+                        sum += noise[(((j + dj) % period) * period) + (((x + di) % period) + period) % period];
+                yuv[j * width + i] = (byte) (sum >> 2);
+            }
+        }
+        for (int k = width * height; k < yuv.length; k++) yuv[k] = (byte) 128;
+        return yuv;
+    }
+}
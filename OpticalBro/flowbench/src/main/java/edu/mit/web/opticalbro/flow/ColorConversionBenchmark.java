@@ -0,0 +1,93 @@
+// YUV420SP to ARGB for the colour overlay: the lookup table version in ColorConversion
+// against the original loop from DrawOnTop (four multiplies and three clamps per pixel),
+// over full camera frames.
+//   ./gradlew :flowbench:jmh -PjmhArgs="ColorConversionBenchmark"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorConversionBenchmark
+{
+    // camera preview size
+    @Param({"320x240", "640x480", "1920x1080"})
+    String resolution;
+
+    int width, height;
+    byte[] frame;
+    int[] rgb;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        width = size[0];
+        height = size[1];
+        frame = BenchmarkFrames.frame(width, height, 0, 1);
+        // BenchmarkFrames has neutral chroma; give it some colour so the clamps are exercised
+        Random random = new Random(1);
+        for (int k = width * height; k < frame.length; k++) frame[k] = (byte) (64 + random.nextInt(128));
+        rgb = new int[width * height];
+    }
+
+    @Benchmark
+    public int[] tables ()
+    {
+        ColorConversion.decodeYUV420SP(rgb, frame, width, height);
+        return rgb;
+    }
+
+    @Benchmark
+    public int[] multiplies ()
+    { // the loop as it was in DrawOnTop.decodeYUV420SP
+        final int frameSize = width * height;
+
+        for (int j = 0, pix = 0; j < height; j++) {
+            int uvp = frameSize + (j >> 1) * width;	// index to start of u and v data for this row
+            int u = 0, v = 0;
+            for (int i = 0; i < width; i++, pix++) {
+                int y = (0xFF & ((int) frame[pix])) - 16;
+                if (y < 0) y = 0;
+                if ((i & 1) == 0) { // even row & column (u & v are at quarter resolution of y)
+                    v = (0xFF & frame[uvp++]) - 128;
+                    u = (0xFF & frame[uvp++]) - 128;
+                }
+
+                int y1192 = 1192 * y;
+                int r = (y1192 + 1634 * v);
+                int g = (y1192 - 833 * v - 400 * u);
+                int b = (y1192 + 2066 * u);
+
+                if (r < 0) r = 0;
+                else if (r > 0x3FFFF) r = 0x3FFFF;
+                if (g < 0) g = 0;
+                else if (g > 0x3FFFF) g = 0x3FFFF;
+                if (b < 0) b = 0;
+                else if (b > 0x3FFFF) b = 0x3FFFF;
+
+                rgb[pix] = 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
+            }
+        }
+        return rgb;
+    }
+}
@@ -0,0 +1,96 @@
+// Point sampling vs box filtering while downscaling the camera frame: time to decode one
+// frame into the engine, plus (printed at the end of each trial) the average endpoint error
+// of the flow for the test texture moving 1, 2 and 3 camera pixels per frame, i.e. mostly
+// by fractions of a downscaled pixel:
+//   ./gradlew :flowbench:jmh -PjmhArgs="DownsamplingBenchmark"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownsamplingBenchmark
+{
+    static final float FPS = 15f;
+
+    @Param({"640x480", "1920x1080"})
+    String resolution;      // of the camera frame
+
+    @Param({"2", "4"})
+    int factor;
+
+    @Param({"POINT", "BOX"})
+    HornSchunckEngine.Downsampling downsampling;
+
+    int width, height;
+    HornSchunckEngine engine;
+    byte[] frame;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        width = size[0];
+        height = size[1];
+        engine = new HornSchunckEngine(width / factor, height / factor, factor);
+        engine.setDownsampling(downsampling);
+        frame = BenchmarkFrames.frame(width, height, 0, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void report ()
+    {
+        StringBuilder line = new StringBuilder(downsampling + " / " + factor + " endpoint error:");
+        for (int shift = 1; shift <= 3; shift++) {
+            HornSchunckEngine flow = new HornSchunckEngine(width / factor, height / factor, factor);
+            flow.setDownsampling(downsampling);
+            flow.setIterations(16);
+            flow.compute(BenchmarkFrames.frame(width, height, 0, 1), width, FPS);
+            flow.compute(BenchmarkFrames.frame(width, height, shift, 1), width, FPS);
+            line.append(String.format(" %d px %.3f", shift, endpointError(flow, FPS * shift / factor, 0)));
+        }
+        System.out.println();
+        System.out.println(line);
+    }
+
+    // mean distance in downscaled pixels per frame from the true flow, away from the borders
+    static double endpointError (HornSchunckEngine engine, float trueU, float trueV)
+    {
+        int fw = engine.getFlowWidth(), fh = engine.getFlowHeight();
+        double sum = 0;
+        int n = 0;
+        for (int j = fh / 8; j < fh - fh / 8; j++) {
+            for (int i = fw / 8; i < fw - fw / 8; i++, n++) {
+                float du = engine.getU()[j * fw + i] - trueU, dv = engine.getV()[j * fw + i] - trueV;
+                sum += Math.sqrt(du * du + dv * dv);
+            }
+        }
+        return sum / n / FPS;
+    }
+
+    @Benchmark
+    public int[] decode ()
+    {
+        engine.decode(frame, 0, width);
+        return engine.mGrayscaleData;
+    }
+}
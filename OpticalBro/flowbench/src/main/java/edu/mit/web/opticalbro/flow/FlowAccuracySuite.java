@@ -0,0 +1,204 @@
+// Accuracy and throughput of every solver variant on SyntheticMotion sequences, as one table:
+// mean endpoint error and mean angular error (Barron et al.) against the true flow, frames per
+// second of compute() and bytes allocated per frame (by all threads), for each motion x camera resolution x
+// variant. Each sequence is run for WARMUP_NANOS to warm up the JIT and then once measured;
+// the first SETTLE frames of the measured run (warm start and multi-frame stencils filling up)
+// don't count.
+//   ./gradlew :flowbench:flowSuite
+//   ./gradlew :flowbench:flowSuite -PsuiteArgs="-r 640x480 -m ZOOM -v JACOBI,PYRAMID -i 8"
+// Options: -r resolutions, -d downscaling factor, -f frames, -m motions, -v variants,
+// -i iterations, -n sensor noise (grey levels). Errors are in camera pixels per frame over the
+// flow grid minus a 10% border; the JMH benchmarks remain the reference for timing alone.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class FlowAccuracySuite
+{
+    static final float FPS = 15f;
+    static final int SETTLE = 10;
+    static final long WARMUP_NANOS = 1000000000L;
+
+    enum Variant
+    {
+        JACOBI, SOR, FIXED_POINT, WARM_START, PYRAMID, STRIPES, BOX, THREE_FRAME, FIVE_FRAME, SPARSE_LK;
+
+        HornSchunckEngine create (int width, int height, int factor, int iterations)
+        {
+            HornSchunckEngine engine = (this == SPARSE_LK) ? new SparseLucasKanade(width, height, factor)
+                    : new HornSchunckEngine(width, height, factor);
+            if (iterations > 0) engine.setIterations(iterations);
+            switch (this) {
+                case SOR: engine.setSolver(HornSchunckEngine.Solver.RED_BLACK_SOR); break;
+                case FIXED_POINT: engine.setSolver(HornSchunckEngine.Solver.FIXED_POINT); break;
+                case WARM_START: engine.setWarmStart(true, 1f); break;
+                case PYRAMID: engine.setPyramid(3, 2); break;
+                case STRIPES: engine.setThreadCount(Math.max(2, Runtime.getRuntime().availableProcessors())); break;
+                case BOX: engine.setDownsampling(HornSchunckEngine.Downsampling.BOX); break;
+                case THREE_FRAME: engine.setTemporalStencil(HornSchunckEngine.TemporalStencil.THREE_FRAME); break;
+                case FIVE_FRAME: engine.setTemporalStencil(HornSchunckEngine.TemporalStencil.FIVE_FRAME); break;
+                default: break;
+            }
+            return engine;
+        }
+    }
+
+    String[] mResolutions = {"320x240", "640x480", "1280x720"};
+    int mFactor = 4;
+    int mFrames = 40;
+    int mIterations;                // 0 = the engine's default
+    float mNoise;
+    List<SyntheticMotion.Motion> mMotions = new ArrayList<SyntheticMotion.Motion>();
+    List<Variant> mVariants = new ArrayList<Variant>();
+
+    public static void main (String[] args)
+    {
+        FlowAccuracySuite suite = new FlowAccuracySuite();
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String value = args[k + 1];
+            if (args[k].equals("-r")) suite.mResolutions = value.split(",");
+            else if (args[k].equals("-d")) suite.mFactor = Integer.parseInt(value);
+            else if (args[k].equals("-f")) suite.mFrames = Integer.parseInt(value);
+            else if (args[k].equals("-i")) suite.mIterations = Integer.parseInt(value);
+            else if (args[k].equals("-n")) suite.mNoise = Float.parseFloat(value);
+            else if (args[k].equals("-m")) {
+                for (String name : value.split(",")) suite.mMotions.add(SyntheticMotion.Motion.valueOf(name));
+            } else if (args[k].equals("-v")) {
+                for (String name : value.split(",")) suite.mVariants.add(Variant.valueOf(name));
+            } else throw new IllegalArgumentException("unknown option " + args[k]);
+        }
+        if (suite.mMotions.isEmpty()) for (SyntheticMotion.Motion m : SyntheticMotion.Motion.values()) suite.mMotions.add(m);
+        if (suite.mVariants.isEmpty()) for (Variant v : Variant.values()) suite.mVariants.add(v);
+        if (suite.mFrames <= SETTLE) throw new IllegalArgumentException("need more than " + SETTLE + " frames");
+        suite.run();
+    }
+
+    void run ()
+    {
+        System.out.println(String.format(Locale.US, "%-12s %-10s %-12s %8s %8s %9s %12s",
+                "motion", "camera", "variant", "EPE px", "AE deg", "fps", "bytes/frame"));
+        for (SyntheticMotion.Motion motion : mMotions) {
+            for (String resolution : mResolutions) {
+                int[] size = BenchmarkFrames.parseResolution(resolution);
+                SyntheticMotion sequence = new SyntheticMotion(motion, size[0], size[1], 1).noise(mNoise);
+                byte[][] frames = new byte[mFrames][];
+                for (int k = 0; k < mFrames; k++) frames[k] = sequence.frame(k);
+                for (Variant variant : mVariants) {
+                    long warmup = System.nanoTime();
+                    do {
+                        measure(variant, sequence, frames, size[0], size[1]);
+                    } while (System.nanoTime() - warmup < WARMUP_NANOS);
+                    double[] result = measure(variant, sequence, frames, size[0], size[1]);
+                    System.out.println(String.format(Locale.US, "%-12s %-10s %-12s %8.4f %8.3f %9.1f %12.0f",
+                            motion, resolution, variant, result[0], result[1], result[2], result[3]));
+                }
+            }
+        }
+    }
+
+    // {endpoint error, angular error, frames per second, bytes allocated per frame}
+    double[] measure (Variant variant, SyntheticMotion sequence, byte[][] frames, int width, int height)
+    {
+        HornSchunckEngine engine = variant.create(width / mFactor, height / mFactor, mFactor, mIterations);
+        double[] error = new double[2];
+        double endpoint = 0, angular = 0;
+        long nanos = 0, allocated = 0, probe = probeBytes();
+        try {
+            for (int k = 0; k < frames.length; k++) {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                engine.compute(frames[k], width, FPS);
+                long end = System.nanoTime();
+                if (k < SETTLE) continue;
+                nanos += end - start;
+                allocated += Math.max(0, allocatedBytes() - bytes - probe);
+                // the flow describes the stencil's centre frame
+                int centre = k - (engine.getTemporalStencil().getFrames() - 1) / 2;
+                errors(engine, sequence, centre - 1, error);
+                endpoint += error[0];
+                angular += error[1];
+            }
+        } finally {
+            engine.shutdown();
+        }
+        int measured = frames.length - SETTLE;
+        return new double[] {endpoint / measured, angular / measured, measured / (nanos / 1e9),
+                (allocatedBytes() < 0) ? Double.NaN : (double) allocated / measured};
+    }
+
+    // mean endpoint and angular error of the engine's flow against the motion from frame k
+    void errors (HornSchunckEngine engine, SyntheticMotion sequence, int k, double[] error)
+    {
+        int factor = engine.getDownscalingFactor();
+        // camera pixel at the middle of flow cell (0, 0)
+        double origin = 0.5 * factor
+                + ((engine.getDownsampling() == HornSchunckEngine.Downsampling.BOX) ? (factor - 1) / 2.0 : 0);
+        float scale = factor / FPS;     // grid pixels per second -> camera pixels per frame
+        float[] truth = new float[2];
+        double endpoint = 0, angular = 0;
+        int n = 0;
+        if (engine instanceof SparseLucasKanade) {
+            SparseLucasKanade sparse = (SparseLucasKanade) engine;
+            for (int p = 0; p < sparse.getPointCount(); p++, n++) {
+                sequence.flowAt(origin + sparse.getPointX(p) * factor, origin + sparse.getPointY(p) * factor, k, truth);
+                endpoint += endpointError(sparse.getPointU(p) * scale, sparse.getPointV(p) * scale, truth);
+                angular += angularError(sparse.getPointU(p) * scale, sparse.getPointV(p) * scale, truth);
+            }
+        } else {
+            int fw = engine.getFlowWidth(), fh = engine.getFlowHeight();
+            int mx = Math.max(1, fw / 10), my = Math.max(1, fh / 10);
+            float[] u = engine.getU(), v = engine.getV();
+            for (int j = my; j < fh - my; j++) {
+                for (int i = mx; i < fw - mx; i++, n++) {
+                    sequence.flowAt(origin + i * factor, origin + j * factor, k, truth);
+                    endpoint += endpointError(u[j * fw + i] * scale, v[j * fw + i] * scale, truth);
+                    angular += angularError(u[j * fw + i] * scale, v[j * fw + i] * scale, truth);
+                }
+            }
+        }
+        error[0] = endpoint / n;
+        error[1] = angular / n;
+    }
+
+    static double endpointError (double u, double v, float[] truth)
+    {
+        double du = u - truth[0], dv = v - truth[1];
+        return Math.sqrt(du * du + dv * dv);
+    }
+
+    // angle between (u, v, 1) and (u*, v*, 1), in degrees
+    static double angularError (double u, double v, float[] truth)
+    {
+        double dot = u * truth[0] + v * truth[1] + 1;
+        double norms = Math.sqrt((u * u + v * v + 1) * (truth[0] * truth[0] + truth[1] * truth[1] + 1));
+        return Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, dot / norms))));
+    }
+
+    // bytes all live threads have allocated so far (the striped engine's workers included),
+    // where the JVM can tell (HotSpot); -1 otherwise
+    static long allocatedBytes ()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        long[] bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds());
+        long sum = 0;
+        for (long b : bytes) if (b > 0) sum += b;   // -1 for threads that ended meanwhile
+        return sum;
+    }
+
+    // what reading allocatedBytes() allocates itself, which changes as the JIT gets to it
+    static long probeBytes ()
+    {
+        long least = Long.MAX_VALUE;
+        for (int k = 0; k < 1000; k++) {
+            long bytes = allocatedBytes();
+            least = Math.min(least, allocatedBytes() - bytes);
+        }
+        return Math.max(0, least);
+    }
+}
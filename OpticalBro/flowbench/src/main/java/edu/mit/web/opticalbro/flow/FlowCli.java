@@ -0,0 +1,128 @@
+// Headless batch run of the flow pipeline over a recorded FrameDump, for reproducing field
+// issues and processing recordings on servers:
+//   ./gradlew :flowbench:flowCli -PcliArgs="[-o out.flow] [-e f16|i8] [-d downscale]
+//       [-i iterations] [-t threads] [-p pyramid levels] [-s jacobi|red_black_sor|fixed_point]
+//       recording.nv21"
+// runs it on the scalar engine; 'gradle flowCli' in flowdesktop runs it with the Vector API
+// kernels (see HornSchunckEngine.create()). Prints frames per second for the whole run and
+// for the engine alone. With -o the flow of every frame is written to a FlowFile, as half
+// floats (the default) or int8, time stamped from the recording's rate.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+public class FlowCli
+{
+    File mInput;
+    File mOutput;
+    int mEncoding = FlowFile.ENCODING_FLOAT16;
+    int mDownscalingFactor = 1;
+    int mIterations = 4;
+    int mThreads = 1;
+    int mPyramidLevels = 1;
+    HornSchunckEngine.Solver mSolver = HornSchunckEngine.Solver.JACOBI;
+
+    // results of the last run()
+    int mFrames;
+    long mTotalNanos, mEngineNanos;
+
+    public static void main (String[] args) throws IOException
+    {
+        FlowCli cli = new FlowCli();
+        try {
+            cli.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: FlowCli [-o out.flow] [-e f16|i8] [-d downscale] [-i iterations]"
+                    + " [-t threads] [-p pyramid levels] [-s jacobi|red_black_sor|fixed_point] recording.nv21");
+            System.exit(2);
+        }
+        try {
+            cli.run();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        cli.report(System.out);
+    }
+
+    void parse (String[] args)
+    {
+        for (int k = 0; k < args.length; k++) {
+            String arg = args[k];
+            if (!arg.startsWith("-")) {
+                if (mInput != null) throw new IllegalArgumentException("more than one input: " + arg);
+                mInput = new File(arg);
+                continue;
+            }
+            if (k + 1 == args.length) throw new IllegalArgumentException("missing value for " + arg);
+            String value = args[++k];
+            if (arg.equals("-o")) mOutput = new File(value);
+            else if (arg.equals("-e")) mEncoding = parseEncoding(value);
+            else if (arg.equals("-d")) mDownscalingFactor = Integer.parseInt(value);
+            else if (arg.equals("-i")) mIterations = Integer.parseInt(value);
+            else if (arg.equals("-t")) mThreads = Integer.parseInt(value);
+            else if (arg.equals("-p")) mPyramidLevels = Integer.parseInt(value);
+            else if (arg.equals("-s")) mSolver = HornSchunckEngine.Solver.valueOf(value.toUpperCase());
+            else throw new IllegalArgumentException("unknown option " + arg);
+        }
+        if (mInput == null) throw new IllegalArgumentException("no input file");
+    }
+
+    static int parseEncoding (String value)
+    {
+        if (value.equals("f16")) return FlowFile.ENCODING_FLOAT16;
+        if (value.equals("i8")) return FlowFile.ENCODING_INT8;
+        throw new IllegalArgumentException("unknown encoding " + value);
+    }
+
+    public void run () throws IOException
+    {
+        FrameDump dump = new FrameDump(mInput);
+        FlowFileWriter out = null;
+        HornSchunckEngine engine = null;
+        try {
+            // nothing to time, and the rates would come out as NaN
+            if (dump.getFrameCount() == 0) throw new IOException(mInput + " has no frames");
+            int width = dump.getWidth() / mDownscalingFactor;
+            int height = dump.getHeight() / mDownscalingFactor;
+            engine = HornSchunckEngine.create(width, height, mDownscalingFactor);
+            engine.setIterations(mIterations);
+            engine.setThreadCount(mThreads);
+            engine.setPyramid(mPyramidLevels, mIterations);
+            engine.setSolver(mSolver);
+            float fps = (dump.getFrameRate() > 0) ? dump.getFrameRate() : 30f;
+
+            if (mOutput != null) {
+                out = new FlowFileWriter(mOutput, engine.getFlowWidth(), engine.getFlowHeight(),
+                        mEncoding, dump.getFrameCount());
+            }
+
+            long start = System.nanoTime(), engineNanos = 0;
+            for (int f = 0; f < dump.getFrameCount(); f++) {
+                ByteBuffer frame = dump.getFrame(f);
+                long t = System.nanoTime();
+                engine.compute(frame, dump.getWidth(), fps);
+                engineNanos += System.nanoTime() - t;
+                if (out != null) out.append(engine.getU(), engine.getV(), (long) (f * 1e9 / fps));
+            }
+            mTotalNanos = System.nanoTime() - start;
+            mEngineNanos = engineNanos;
+            mFrames = dump.getFrameCount();
+        } finally {
+            if (engine != null) engine.shutdown();
+            if (out != null) out.close();
+            dump.close();
+        }
+    }
+
+    void report (PrintStream out)
+    {
+        out.printf("%d frames in %.3f s: %.1f frames/s (engine alone %.1f frames/s)%n",
+                mFrames, mTotalNanos / 1e9, mFrames / (mTotalNanos / 1e9), mFrames / (mEngineNanos / 1e9));
+    }
+}
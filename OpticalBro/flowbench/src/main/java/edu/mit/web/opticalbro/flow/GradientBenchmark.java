@@ -0,0 +1,104 @@
+// Brightness gradient pass: the fused flat-array kernel in HornSchunckEngine against the
+// original per-output 8-corner loop over int[][] arrays from DrawOnTop.onDraw.
+//   ./gradlew :flowbench:jmh -PjmhArgs="GradientBenchmark"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GradientBenchmark
+{
+    // size of the grayscale image
+    @Param({"80x60", "320x240", "1280x720"})
+    String resolution;
+
+    float fps = 15f;
+    HornSchunckEngine engine;
+    int mImageWidth, mImageHeight;
+    int[][] mGrayscaleData, mPrevGrayscaleData;
+    int[][] E_x, E_y, E_t;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        mImageWidth = size[0];
+        mImageHeight = size[1];
+        engine = new HornSchunckEngine(mImageWidth, mImageHeight, 1);
+        engine.setIterations(0);
+        engine.compute(BenchmarkFrames.frame(mImageWidth, mImageHeight, 0, 1), mImageWidth, fps);
+        engine.compute(BenchmarkFrames.frame(mImageWidth, mImageHeight, 1, 1), mImageWidth, fps);
+
+        mGrayscaleData = new int[mImageHeight][mImageWidth];
+        mPrevGrayscaleData = new int[mImageHeight][mImageWidth];
+        for (int j = 0; j < mImageHeight; j++) {
+            for (int i = 0; i < mImageWidth; i++) {
+                mGrayscaleData[j][i] = engine.mGrayscaleData[j * mImageWidth + i];
+                mPrevGrayscaleData[j][i] = engine.mPrevGrayscaleData[j * mImageWidth + i];
+            }
+        }
+        E_x = new int[mImageHeight - 1][mImageWidth - 1];
+        E_y = new int[mImageHeight - 1][mImageWidth - 1];
+        E_t = new int[mImageHeight - 1][mImageWidth - 1];
+    }
+
+    @Benchmark
+    public int[] fused ()
+    {
+        engine.computeGradients(fps);
+        return engine.getEt();
+    }
+
+    @Benchmark
+    public int[][] jaggedArrays ()
+    { // the loop as it was in DrawOnTop.onDraw
+        for (int j = 0; j < mImageHeight - 1; j++) {
+            for (int i = 0; i < mImageWidth - 1; i++) {
+                E_x[j][i] = (mPrevGrayscaleData[j][i+1]
+                        + mGrayscaleData[j][i+1]
+                        + mPrevGrayscaleData[j+1][i+1]
+                        + mGrayscaleData[j+1][i+1]
+                        - mPrevGrayscaleData[j][i]
+                        - mGrayscaleData[j][i]
+                        - mPrevGrayscaleData[j+1][i]
+                        - mGrayscaleData[j+1][i])>>2;
+                E_y[j][i] = (mPrevGrayscaleData[j+1][i]
+                        + mGrayscaleData[j+1][i]
+                        + mPrevGrayscaleData[j+1][i+1]
+                        + mGrayscaleData[j+1][i+1]
+                        - mPrevGrayscaleData[j][i]
+                        - mGrayscaleData[j][i]
+                        - mPrevGrayscaleData[j][i+1]
+                        - mGrayscaleData[j][i+1])>>2;
+                E_t[j][i] = (int)(fps*((mGrayscaleData[j][i]
+                        + mGrayscaleData[j+1][i]
+                        + mGrayscaleData[j][i+1]
+                        + mGrayscaleData[j+1][i+1]
+                        - mPrevGrayscaleData[j][i]
+                        - mPrevGrayscaleData[j+1][i]
+                        - mPrevGrayscaleData[j][i+1]
+                        - mPrevGrayscaleData[j+1][i+1])>>2));
+            }
+        }
+        return E_t;
+    }
+}
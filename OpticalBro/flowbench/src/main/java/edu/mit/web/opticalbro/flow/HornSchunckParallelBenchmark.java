@@ -0,0 +1,62 @@
+// Horn-Schunck iterations (neighbour average + velocity update) split over 1..8 threads.
+// Run on a machine with at least 8 cores to see the scaling:
+//   ./gradlew :flowbench:jmh -PjmhArgs="HornSchunckParallel"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HornSchunckParallelBenchmark
+{
+    // flow grid size (the engine is run without downscaling)
+    @Param({"320x240", "1280x720"})
+    String resolution;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    HornSchunckEngine engine;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        engine = new HornSchunckEngine(size[0] + 1, size[1] + 1, 1);
+        engine.setThreadCount(threads);
+        engine.compute(BenchmarkFrames.frame(size[0] + 1, size[1] + 1, 0, 1), size[0] + 1, 15f);
+        engine.compute(BenchmarkFrames.frame(size[0] + 1, size[1] + 1, 1, 1), size[0] + 1, 15f);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown ()
+    {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public float[] iterations ()
+    { // the 4 iterations only; gradients stay from setup
+        engine.computeFlow();
+        return engine.getU();
+    }
+}
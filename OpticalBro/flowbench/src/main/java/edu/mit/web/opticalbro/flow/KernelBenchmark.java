@@ -0,0 +1,110 @@
+// Baseline of every per-pixel kernel of a frame, each in isolation, over the camera preview
+// sizes: the colour overlay's decodeYUV420SP (full resolution), the downscaling grayscale
+// decode, the gradient pass, one Horn-Schunck iteration (neighbour averages and update) and
+// the gradient thresholding, both as reshapeTo1DandThreshold over int[][] and on the flat
+// arrays. The grayscale, gradient, iteration and threshold kernels work on the grid
+// downscaled by 'factor', as in the app. Allocation per operation, which should be zero:
+//   ./gradlew :flowbench:jmh -PjmhArgs="KernelBenchmark -prof gc"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark
+{
+    // camera preview size
+    @Param({"160x120", "320x240", "640x480", "1280x720", "1920x1080"})
+    String resolution;
+
+    @Param({"4"})
+    int factor;
+
+    float fps = 15f;
+    int width, height;
+    byte[] frame;
+    int[] rgb;
+    HornSchunckEngine engine;
+    int[][] gradient;               // E_x as the int[][] reshapeTo1DandThreshold takes
+    int[] colours;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        width = size[0];
+        height = size[1];
+        frame = BenchmarkFrames.frame(width, height, factor, 1);
+        rgb = new int[width * height];
+        engine = new HornSchunckEngine(width / factor, height / factor, factor);
+        engine.setIterations(1);
+        engine.compute(BenchmarkFrames.frame(width, height, 0, 1), width, fps);
+        engine.compute(frame, width, fps);
+
+        int fw = engine.getFlowWidth(), fh = engine.getFlowHeight();
+        gradient = new int[fh][fw];
+        for (int j = 0; j < fh; j++)
+            for (int i = 0; i < fw; i++) gradient[j][i] = engine.getEx()[j * fw + i];
+        colours = new int[fw * fh];
+    }
+
+    @Benchmark
+    public int[] decodeYUV420SP ()
+    {
+        ColorConversion.decodeYUV420SP(rgb, frame, width, height);
+        return rgb;
+    }
+
+    @Benchmark
+    public int[] decodeYUV420SPGrayscale ()
+    {
+        engine.decode(frame, 0, width);
+        return engine.mGrayscaleData;
+    }
+
+    @Benchmark
+    public int[] gradients ()
+    {
+        engine.computeGradients(fps);
+        return engine.getEt();
+    }
+
+    @Benchmark
+    public float[] iteration ()
+    {
+        engine.computeFlow();
+        return engine.getU();
+    }
+
+    @Benchmark
+    public int[] reshapeTo1DandThreshold ()
+    {
+        ColorConversion.reshapeTo1DandThreshold(gradient, colours, engine.getFlowWidth(), engine.getFlowHeight());
+        return colours;
+    }
+
+    @Benchmark
+    public int[] threshold ()
+    {
+        ColorConversion.threshold(engine.getEx(), colours, engine.getFlowWidth(), engine.getFlowHeight());
+        return colours;
+    }
+}
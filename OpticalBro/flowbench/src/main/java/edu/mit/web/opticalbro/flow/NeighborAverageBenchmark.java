@@ -0,0 +1,91 @@
+// Neighbour average pass over the flow grid: the interior stencil with a separate border
+// (HornSchunckEngine.neighborAverages) against the previous per-pixel version with four
+// bounds checks, an int accumulator and a divide by the neighbour count.
+//   ./gradlew :flowbench:jmh -PjmhArgs="NeighborAverageBenchmark"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NeighborAverageBenchmark
+{
+    // flow grid size
+    @Param({"80x60", "320x240", "1280x720"})
+    String resolution;
+
+    int width, height;
+    float[] u, uAvg;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        width = size[0];
+        height = size[1];
+        u = new float[width * height];
+        uAvg = new float[width * height];
+        Random random = new Random(1);
+        for (int k = 0; k < u.length; k++) u[k] = (random.nextFloat() - 0.5f) * 20;
+    }
+
+    @Benchmark
+    public float[] split ()
+    {
+        HornSchunckEngine.neighborAverages(u, uAvg, width, height, 0, height);
+        return uAvg;
+    }
+
+    @Benchmark
+    public float[] perPixel ()
+    {
+        for (int j = 0, k = 0; j < height; j++)
+            for (int i = 0; i < width; i++, k++)
+                uAvg[k] = getNeighborAverage(u, i, j, width, height);
+        return uAvg;
+    }
+
+    // HornSchunckEngine.getNeighborAverage before the interior / border split
+    static float getNeighborAverage (float[] array, int i, int j, int width, int height)
+    {
+        int neighborCount = 0;
+        int neighborSum = 0;
+        int k = j * width + i;
+        if (i > 0) {
+            neighborCount++;
+            neighborSum += array[k - 1];
+        }
+        if (j > 0) {
+            neighborCount++;
+            neighborSum += array[k - width];
+        }
+        if (i < width - 1) {
+            neighborCount++;
+            neighborSum += array[k + 1];
+        }
+        if (j < height - 1) {
+            neighborCount++;
+            neighborSum += array[k + width];
+        }
+        return ((float) neighborSum / neighborCount);
+    }
+}
@@ -0,0 +1,73 @@
+// Flow for one centred square region of interest against the whole frame, per frame
+// (decode, gradients and iterations). The region's time should follow its area:
+//   ./gradlew :flowbench:jmh -PjmhArgs="RegionFlowBenchmark"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionFlowBenchmark
+{
+    @Param({"320x240"})
+    String resolution;
+
+    @Param({"32", "64", "128"})
+    int regionSize;         // side of the region, in pixels
+
+    HornSchunckEngine full;
+    RegionFlow regions;
+    byte[][] frames = new byte[2][];
+    int width, frame;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        width = size[0];
+        for (int k = 0; k < frames.length; k++) frames[k] = BenchmarkFrames.frame(size[0], size[1], k, 1);
+        full = new HornSchunckEngine(size[0], size[1], 1);
+        regions = new RegionFlow(size[0], size[1], 1);
+        regions.addRegion((size[0] - regionSize) / 2, (size[1] - regionSize) / 2, regionSize, regionSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown ()
+    {
+        full.shutdown();
+        regions.shutdown();
+    }
+
+    @Benchmark
+    public float[] fullFrame ()
+    {
+        full.compute(frames[frame ^= 1], width, 15f);
+        return full.getU();
+    }
+
+    @Benchmark
+    public RegionFlow region ()
+    {
+        regions.compute(frames[frame ^= 1], width, 15f);
+        return regions;
+    }
+}
@@ -0,0 +1,83 @@
+// Jacobi vs red-black SOR vs fixed point Jacobi: time for a given number of sweeps, plus
+// (printed at the end of each trial) how far that many sweeps still are from the converged
+// flow. Put together the two give error against time per frame:
+//   ./gradlew :flowbench:jmh -PjmhArgs="SolverBenchmark"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolverBenchmark
+{
+    static final int CONVERGED = 2000;  // sweeps used for the reference solution
+
+    @Param({"320x240"})
+    String resolution;
+
+    @Param({"JACOBI", "RED_BLACK_SOR", "FIXED_POINT"})
+    HornSchunckEngine.Solver solver;
+
+    @Param({"1", "2", "4", "8", "16"})
+    int iterations;
+
+    @Param({"1.8"})
+    float relaxation;
+
+    HornSchunckEngine engine;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        engine = new HornSchunckEngine(size[0] + 1, size[1] + 1, 1);
+        engine.setSolver(solver);
+        engine.setRelaxation(relaxation);
+        engine.compute(BenchmarkFrames.frame(size[0] + 1, size[1] + 1, 0, 1), size[0] + 1, 15f);
+        engine.compute(BenchmarkFrames.frame(size[0] + 1, size[1] + 1, 1, 1), size[0] + 1, 15f);
+        engine.setIterations(iterations);
+    }
+
+    @TearDown(Level.Trial)
+    public void report ()
+    { // mean |u - u*| + |v - v*| after 'iterations' sweeps, relative to the zero start
+        engine.setIterations(CONVERGED);
+        engine.computeFlow();
+        float[] u = engine.getU().clone(), v = engine.getV().clone();
+        engine.setIterations(iterations);
+        engine.computeFlow();
+        double error = 0, initial = 0;
+        for (int k = 0; k < u.length; k++) {
+            error += Math.abs(engine.getU()[k] - u[k]) + Math.abs(engine.getV()[k] - v[k]);
+            initial += Math.abs(u[k]) + Math.abs(v[k]);
+        }
+        System.out.println();
+        System.out.println(solver + " x " + iterations + ": relative error " + (float) (error / initial));
+    }
+
+    @Benchmark
+    public float[] sweeps ()
+    {
+        engine.computeFlow();
+        return engine.getU();
+    }
+}
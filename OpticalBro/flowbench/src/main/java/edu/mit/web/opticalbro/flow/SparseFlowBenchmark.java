@@ -0,0 +1,68 @@
+// Lucas-Kanade at a grid of sample points against dense Horn-Schunck, per frame (decode,
+// gradients and the solve), at the app's default downscaling of 4:
+//   ./gradlew :flowbench:jmh -PjmhArgs="SparseFlowBenchmark"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparseFlowBenchmark
+{
+    static final int FACTOR = 4;
+
+    @Param({"640x480", "1280x720"})
+    String resolution;      // of the camera frame
+
+    @Param({"4x3", "8x6"})
+    String grid;
+
+    HornSchunckEngine dense;
+    SparseLucasKanade sparse;
+    byte[][] frames = new byte[2][];
+    int width, frame;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        int[] points = BenchmarkFrames.parseResolution(grid);
+        width = size[0];
+        for (int k = 0; k < frames.length; k++) frames[k] = BenchmarkFrames.frame(size[0], size[1], k, 1);
+        dense = new HornSchunckEngine(size[0] / FACTOR, size[1] / FACTOR, FACTOR);
+        sparse = new SparseLucasKanade(size[0] / FACTOR, size[1] / FACTOR, FACTOR);
+        sparse.setGrid(points[0], points[1]);
+    }
+
+    @Benchmark
+    public float[] dense ()
+    {
+        dense.compute(frames[frame ^= 1], width, 15f);
+        return dense.getU();
+    }
+
+    @Benchmark
+    public float[] sparse ()
+    {
+        sparse.compute(frames[frame ^= 1], width, 15f);
+        return sparse.getU();
+    }
+}
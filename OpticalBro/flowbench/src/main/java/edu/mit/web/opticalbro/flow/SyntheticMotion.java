@@ -0,0 +1,109 @@
+// Synthetic camera sequences with known flow: a smooth value noise texture (two octaves,
+// cells of 16 and 6 pixels, so it has detail everywhere and no aliasing at full resolution)
+// moved by a similarity transform per frame - translation, rotation and zoom about the image
+// centre - plus optional Gaussian sensor noise. Frame k shows the texture through
+//   P_k(x) = c + s^k R(k a) (x - c) + k t
+// and flowAt() is the exact motion of each pixel from frame k to frame k + 1, in camera pixels
+// per frame. Frames come out as YUV420SP like the preview callback's, with neutral chroma.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.util.Random;
+
+final class SyntheticMotion
+{
+    enum Motion
+    {
+        TRANSLATION,    // 0.75, 0.5 px per frame
+        ROTATION,       // 0.5 degrees per frame about the centre
+        ZOOM            // 1% per frame about the centre
+    }
+
+    final int mWidth, mHeight;
+    final long mSeed;
+    float mShiftX, mShiftY;         // t, pixels per frame
+    float mAngle;                   // a, radians per frame
+    float mScale = 1;               // s, per frame
+    float mNoise;                   // sensor noise standard deviation, grey levels
+
+    SyntheticMotion (int width, int height, long seed)
+    {
+        mWidth = width;
+        mHeight = height;
+        mSeed = seed;
+    }
+
+    SyntheticMotion (Motion motion, int width, int height, long seed)
+    {
+        this(width, height, seed);
+        switch (motion) {
+            case TRANSLATION: translate(0.75f, 0.5f); break;
+            case ROTATION: rotate((float) Math.toRadians(0.5)); break;
+            case ZOOM: zoom(1.01f); break;
+        }
+    }
+
+    SyntheticMotion translate (float dx, float dy) { mShiftX = dx; mShiftY = dy; return this; }
+    SyntheticMotion rotate (float radians) { mAngle = radians; return this; }
+    SyntheticMotion zoom (float scale) { mScale = scale; return this; }
+    SyntheticMotion noise (float sigma) { mNoise = sigma; return this; }
+
+    byte[] frame (int k)
+    {
+        double cx = (mWidth - 1) / 2.0, cy = (mHeight - 1) / 2.0;
+        // P_k^-1(x) = c + s^-k R(-k a) (x - c - k t)
+        double inverse = Math.pow(mScale, -k);
+        double cos = inverse * Math.cos(k * mAngle), sin = inverse * Math.sin(k * mAngle);
+        Random noise = new Random(mSeed * 31 + k);
+        byte[] yuv = new byte[mWidth * mHeight * 3 / 2];
+        for (int j = 0; j < mHeight; j++) {
+            double y = j - cy - k * mShiftY;
+            for (int i = 0; i < mWidth; i++) {
+                double x = i - cx - k * mShiftX;
+                double value = texture(cx + cos * x + sin * y, cy - sin * x + cos * y);
+                if (mNoise > 0) value += mNoise * noise.nextGaussian();
+                yuv[j * mWidth + i] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+            }
+        }
+        for (int p = mWidth * mHeight; p < yuv.length; p++) yuv[p] = (byte) 128;
+        return yuv;
+    }
+
+    // motion of the point at (x, y) in frame k to frame k + 1: P_k+1(P_k^-1(x)) - x
+    void flowAt (double x, double y, int k, float[] uv)
+    {
+        double cx = (mWidth - 1) / 2.0, cy = (mHeight - 1) / 2.0;
+        double dx = x - cx - k * mShiftX, dy = y - cy - k * mShiftY;
+        double cos = mScale * Math.cos(mAngle), sin = mScale * Math.sin(mAngle);
+        uv[0] = (float) (cx + cos * dx - sin * dy + (k + 1) * mShiftX - x);
+        uv[1] = (float) (cy + sin * dx + cos * dy + (k + 1) * mShiftY - y);
+    }
+
+    double texture (double x, double y)
+    {
+        return 128 + 70 * valueNoise(x / 16, y / 16, 0) + 40 * valueNoise(x / 6, y / 6, 1);
+    }
+
+    // -1..1, smoothly interpolated between random values at the integer lattice points
+    double valueNoise (double x, double y, int octave)
+    {
+        double fx = Math.floor(x), fy = Math.floor(y);
+        int ix = (int) fx, iy = (int) fy;
+        double sx = smooth(x - fx), sy = smooth(y - fy);
+        double top = lattice(ix, iy, octave) + sx * (lattice(ix + 1, iy, octave) - lattice(ix, iy, octave));
+        double bottom = lattice(ix, iy + 1, octave)
+                + sx * (lattice(ix + 1, iy + 1, octave) - lattice(ix, iy + 1, octave));
+        return top + sy * (bottom - top);
+    }
+
+    static double smooth (double t) { return t * t * (3 - 2 * t); }
+
+    double lattice (int x, int y, int octave)
+    { // hash of the lattice point, so the texture needs no storage and has no edge
+        long h = mSeed + octave * 0x9E3779B97F4A7C15L + x * 0xC2B2AE3D27D4EB4FL + y * 0x165667B19E3779F9L;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (h >>> 11) * 0x1.0p-52 - 1;
+    }
+}
@@ -0,0 +1,68 @@
+// One Jacobi velocity update over the flow grid: with the per-frame weight cache
+// (HornSchunckEngine.updateRows) against working out the denominator and dividing in
+// every iteration as before.
+//   ./gradlew :flowbench:jmh -PjmhArgs="VelocityUpdateBenchmark"
+
+package edu.mit.web.opticalbro.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VelocityUpdateBenchmark
+{
+    // flow grid size (the engine is run without downscaling)
+    @Param({"80x60", "320x240", "1280x720"})
+    String resolution;
+
+    HornSchunckEngine engine;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        engine = new HornSchunckEngine(size[0] + 1, size[1] + 1, 1);
+        engine.compute(BenchmarkFrames.frame(size[0] + 1, size[1] + 1, 0, 1), size[0] + 1, 15f);
+        engine.compute(BenchmarkFrames.frame(size[0] + 1, size[1] + 1, 1, 1), size[0] + 1, 15f);
+        engine.averageRows(0, engine.getFlowHeight());
+    }
+
+    @Benchmark
+    public float[] cached ()
+    {
+        engine.updateRows(0, engine.getFlowHeight());
+        return engine.getU();
+    }
+
+    @Benchmark
+    public float[] divide ()
+    { // HornSchunckEngine.updateRows before the weight cache
+        final int[] E_x = engine.E_x, E_y = engine.E_y, E_t = engine.E_t;
+        final float[] u = engine.u, v = engine.v, uAvg = engine.uAvg, vAvg = engine.vAvg;
+        final float lambda = engine.lambda;
+        for (int k = 0, end = engine.getFlowWidth() * engine.getFlowHeight(); k < end; k++) {
+            int ex = E_x[k], ey = E_y[k];
+            float adjustment = (ex * uAvg[k] + ey * vAvg[k] + E_t[k]) / (1 + lambda * ((float) (ex * ex) + (float) (ey * ey)));
+            u[k] = uAvg[k] - ex * adjustment;
+            v[k] = vAvg[k] - ey * adjustment;
+        }
+        return u;
+    }
+}
@@ -0,0 +1,84 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class FlowCliTest {
+    static final int W = 48, H = 36;
+
+    File input, output;
+
+    @After
+    public void tearDown() {
+        if (input != null) input.delete();
+        if (output != null) output.delete();
+    }
+
+    @Test
+    public void writesTheEnginesFlowForEveryFrame() throws Exception {
+        input = File.createTempFile("frames", ".nv21");
+        output = File.createTempFile("frames", ".flow");
+        int frameSize = W * H * 3 / 2;
+        FileOutputStream out = new FileOutputStream(input);
+        out.write(FrameDump.header(W, H, 3, 20f, frameSize).array());
+        byte[][] frames = new byte[3][];
+        for (int f = 0; f < 3; f++) {
+            frames[f] = BenchmarkFrames.frame(W, H, 2 * f, 1);
+            out.write(frames[f]);
+        }
+        out.close();
+
+        FlowCli cli = new FlowCli();
+        cli.parse(new String[] {"-o", output.getPath(), "-d", "2", "-i", "8", "-e", "f16", input.getPath()});
+        cli.run();
+        assertEquals(3, cli.mFrames);
+
+        HornSchunckEngine engine = new HornSchunckEngine(W / 2, H / 2, 2);
+        engine.setIterations(8);
+        int fw = engine.getFlowWidth(), fh = engine.getFlowHeight();
+        FlowFileReader flow = new FlowFileReader(output);
+        try {
+            assertEquals(fw, flow.getWidth());
+            assertEquals(fh, flow.getHeight());
+            assertEquals(3, flow.getFrameCount());
+            for (int f = 0; f < 3; f++) {
+                engine.compute(frames[f], W, 20f);
+                assertEquals(f * 50000000L, flow.getTimestamp(f));
+                for (int y = 0; y < fh; y++) {
+                    for (int x = 0; x < fw; x++) {
+                        float u = engine.getU()[y * fw + x], v = engine.getV()[y * fw + x];
+                        // half float rounding
+                        assertEquals(u, flow.getU(f, x, y), 1e-3f * Math.abs(u) + 1e-4f);
+                        assertEquals(v, flow.getV(f, x, y), 1e-3f * Math.abs(v) + 1e-4f);
+                    }
+                }
+            }
+        } finally {
+            flow.close();
+        }
+    }
+
+    @Test
+    public void rejectsAnEmptyDump() throws Exception {
+        input = File.createTempFile("frames", ".nv21");
+        FileOutputStream out = new FileOutputStream(input);
+        out.write(FrameDump.header(W, H, 0, 20f, W * H * 3 / 2).array());
+        out.close();
+
+        FlowCli cli = new FlowCli();
+        cli.parse(new String[] {input.getPath()});
+        try {
+            cli.run();
+            fail("ran an empty dump");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("no frames"));
+        }
+        assertEquals(0, cli.mFrames);
+    }
+}
@@ -0,0 +1,69 @@
+// Gradient pass and one Jacobi iteration: the scalar flat-array kernels against the
+// Vector API ones at 2, 4, 8 and 16 float lanes (64 to 512 bit). Lane widths the CPU
+// doesn't have are still run, but the JIT emulates them and they come out slow.
+//   gradle jmh -PjmhArgs="VectorKernelBenchmark"     (from flowdesktop/, see its build.gradle)
+
+package edu.mit.web.opticalbro.flow;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorShape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class VectorKernelBenchmark
+{
+    // size of the grayscale image
+    @Param({"320x240", "1280x720"})
+    String resolution;
+
+    // "scalar" or the vector size in bits
+    @Param({"scalar", "64", "128", "256", "512"})
+    String kernel;
+
+    HornSchunckEngine engine;
+
+    @Setup(Level.Trial)
+    public void setup ()
+    {
+        int[] size = BenchmarkFrames.parseResolution(resolution);
+        int w = size[0], h = size[1];
+        if (kernel.equals("scalar")) engine = new HornSchunckEngine(w, h, 1);
+        else engine = new VectorHornSchunckEngine(w, h, 1,
+                FloatVector.SPECIES_64.withShape(VectorShape.forBitSize(Integer.parseInt(kernel))));
+        engine.compute(BenchmarkFrames.frame(w, h, 0, 1), w, 15f);
+        engine.compute(BenchmarkFrames.frame(w, h, 1, 1), w, 15f);
+    }
+
+    @Benchmark
+    public int[] gradients ()
+    {
+        engine.computeGradients(15f);
+        return engine.getEt();
+    }
+
+    @Benchmark
+    public float[] iteration ()
+    {
+        engine.averageRows(0, engine.getFlowHeight());
+        engine.updateRows(0, engine.getFlowHeight());
+        return engine.getU();
+    }
+}
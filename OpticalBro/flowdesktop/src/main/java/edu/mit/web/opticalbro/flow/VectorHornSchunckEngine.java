@@ -0,0 +1,155 @@
+// HornSchunckEngine with the gradient pass and the Jacobi iterations written against the
+// incubating Vector API, for running the same flow math offline on x86 servers.
+// Needs JDK 16+ and --add-modules jdk.incubator.vector at compile and run time; use
+// HornSchunckEngine.create() to get this engine only where that works. The kernels do
+// the same float operations in the same order as the scalar ones (no fused multiply-add),
+// so the results are identical. Residual tracking, SOR and fixed point fall back to the
+// scalar code.
+
+package edu.mit.web.opticalbro.flow;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorHornSchunckEngine extends HornSchunckEngine
+{
+    final VectorSpecies<Float> mFloats;
+    final VectorSpecies<Integer> mInts;    // same shape, so the same number of lanes
+    final int[] mColumnSum, mColumnRise, mColumnChange;  // per column of a row pair, see computeGradients
+
+    public VectorHornSchunckEngine (int width, int height, int downscalingFactor)
+    {
+        this(width, height, downscalingFactor, FloatVector.SPECIES_PREFERRED);
+    }
+
+    // species picks the lane width, e.g. FloatVector.SPECIES_128 for 4 floats
+    public VectorHornSchunckEngine (int width, int height, int downscalingFactor, VectorSpecies<Float> species)
+    {
+        super(width, height, downscalingFactor);
+        mFloats = species;
+        mInts = VectorSpecies.of(int.class, species.vectorShape());
+        mColumnSum = new int[width];
+        mColumnRise = new int[width];
+        mColumnChange = new int[width];
+    }
+
+    // whether the Vector API can be used here; called by HornSchunckEngine.create()
+    public static boolean isSupported ()
+    {
+        try {
+            return FloatVector.SPECIES_PREFERRED.length() > 1;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    public int getLanes () { return mFloats.length(); }
+
+    @Override
+    void computeGradients (float fps)
+    { // the fused scalar kernel's column sums, a vector of columns at a time: first
+      // s / r / d for every column of the row pair, then each cell from two neighbours
+        final int w = mWidth, fw = mFlowWidth;
+        final int[] cur = mGrayscaleData, prev = mPrevGrayscaleData;
+        final int[] s = mColumnSum, r = mColumnRise, d = mColumnChange;
+        final VectorSpecies<Integer> species = mInts;
+        final int lanes = species.length();
+        for (int j = 0; j < mFlowHeight; j++) {
+            int a0 = j * w, a1 = a0 + w, k0 = j * fw;
+            int i = 0;
+            for (int bound = species.loopBound(w); i < bound; i += lanes) {
+                IntVector p0 = IntVector.fromArray(species, prev, a0 + i);
+                IntVector p1 = IntVector.fromArray(species, prev, a1 + i);
+                IntVector c0 = IntVector.fromArray(species, cur, a0 + i);
+                IntVector c1 = IntVector.fromArray(species, cur, a1 + i);
+                IntVector top = p0.add(c0), bottom = p1.add(c1);
+                top.add(bottom).intoArray(s, i);
+                bottom.sub(top).intoArray(r, i);
+                c0.add(c1).sub(p0).sub(p1).intoArray(d, i);
+            }
+            for (; i < w; i++) {
+                int top = prev[a0 + i] + cur[a0 + i], bottom = prev[a1 + i] + cur[a1 + i];
+                s[i] = top + bottom;
+                r[i] = bottom - top;
+                d[i] = cur[a0 + i] + cur[a1 + i] - prev[a0 + i] - prev[a1 + i];
+            }
+            i = 0;
+            for (int bound = species.loopBound(fw); i < bound; i += lanes) {
+                IntVector.fromArray(species, s, i + 1).sub(IntVector.fromArray(species, s, i))
+                        .lanewise(VectorOperators.ASHR, 2).intoArray(E_x, k0 + i);
+                IntVector.fromArray(species, r, i).add(IntVector.fromArray(species, r, i + 1))
+                        .lanewise(VectorOperators.ASHR, 2).intoArray(E_y, k0 + i);
+                FloatVector dt = (FloatVector) IntVector.fromArray(species, d, i)
+                        .add(IntVector.fromArray(species, d, i + 1))
+                        .lanewise(VectorOperators.ASHR, 2).convert(VectorOperators.I2F, 0);
+                ((IntVector) dt.mul(fps).convert(VectorOperators.F2I, 0)).intoArray(E_t, k0 + i);
+            }
+            for (; i < fw; i++) {
+                E_x[k0 + i] = (s[i + 1] - s[i]) >> 2;
+                E_y[k0 + i] = (r[i] + r[i + 1]) >> 2;
+                E_t[k0 + i] = (int) (fps * ((d[i] + d[i + 1]) >> 2));
+            }
+        }
+    }
+
+    @Override
+    void averageRows (int j0, int j1)
+    {
+        average(u, uAvg, j0, j1);
+        average(v, vAvg, j0, j1);
+    }
+
+    // neighborAverages() with the interior stencil in vectors; borders stay scalar
+    void average (float[] array, float[] average, int j0, int j1)
+    {
+        final int w = mFlowWidth, h = mFlowHeight;
+        final VectorSpecies<Float> species = mFloats;
+        for (int j = j0; j < j1; j++) {
+            if (j == 0 || j == h - 1 || w < 3) {
+                neighborAverages(array, average, w, h, j, j + 1);
+                continue;
+            }
+            int row = j * w;
+            average[row] = neighborAverage(array, 0, j, w, h);
+            int k = row + 1, end = row + w - 1;
+            for (int bound = k + species.loopBound(end - k); k < bound; k += species.length()) {
+                FloatVector.fromArray(species, array, k - 1)
+                        .add(FloatVector.fromArray(species, array, k - w))
+                        .add(FloatVector.fromArray(species, array, k + 1))
+                        .add(FloatVector.fromArray(species, array, k + w))
+                        .mul(0.25f)
+                        .intoArray(average, k);
+            }
+            for (; k < end; k++)
+                average[k] = (array[k - 1] + array[k - w] + array[k + 1] + array[k + w]) * 0.25f;
+            average[row + w - 1] = neighborAverage(array, w - 1, j, w, h);
+        }
+    }
+
+    @Override
+    double updateRows (int j0, int j1)
+    {
+        if (mTrackResiduals) return super.updateRows(j0, j1);
+        final VectorSpecies<Float> species = mFloats;
+        final VectorSpecies<Integer> ints = mInts;
+        int k = j0 * mFlowWidth, end = j1 * mFlowWidth;
+        for (int bound = k + species.loopBound(end - k); k < bound; k += species.length()) {
+            FloatVector ex = (FloatVector) IntVector.fromArray(ints, E_x, k).convert(VectorOperators.I2F, 0);
+            FloatVector ey = (FloatVector) IntVector.fromArray(ints, E_y, k).convert(VectorOperators.I2F, 0);
+            FloatVector et = (FloatVector) IntVector.fromArray(ints, E_t, k).convert(VectorOperators.I2F, 0);
+            FloatVector ua = FloatVector.fromArray(species, uAvg, k);
+            FloatVector va = FloatVector.fromArray(species, vAvg, k);
+            FloatVector error = ex.mul(ua).add(ey.mul(va)).add(et);
+            ua.sub(FloatVector.fromArray(species, mWeightX, k).mul(error)).intoArray(u, k);
+            va.sub(FloatVector.fromArray(species, mWeightY, k).mul(error)).intoArray(v, k);
+        }
+        for (; k < end; k++) {
+            float error = E_x[k] * uAvg[k] + E_y[k] * vAvg[k] + E_t[k];
+            u[k] = uAvg[k] - mWeightX[k] * error;
+            v[k] = vAvg[k] - mWeightY[k] * error;
+        }
+        return 0;
+    }
+}
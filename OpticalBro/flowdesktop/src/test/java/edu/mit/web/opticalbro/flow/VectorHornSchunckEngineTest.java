@@ -0,0 +1,80 @@
+package edu.mit.web.opticalbro.flow;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VectorHornSchunckEngineTest {
+    static final float FPS = 15f;
+
+    // random texture shifted right by 'shift' pixels, as a Y plane
+    static byte[] frame(int width, int height, int shift) {
+        Random random = new Random(42);
+        int[] row = new int[width + 64];
+        for (int i = 0; i < row.length; i++) row[i] = random.nextInt(256);
+        byte[] y = new byte[width * height];
+        for (int j = 0; j < height; j++)
+            for (int i = 0; i < width; i++)
+                y[j * width + i] = (byte) ((row[(i - shift + 32 + j) % row.length] + 7 * j) & 0xFF);
+        return y;
+    }
+
+    static void assertSameFlow(HornSchunckEngine scalar, HornSchunckEngine vector) {
+        assertArrayEquals(scalar.getEx(), vector.getEx());
+        assertArrayEquals(scalar.getEy(), vector.getEy());
+        assertArrayEquals(scalar.getEt(), vector.getEt());
+        assertArrayEquals(scalar.getU(), vector.getU(), 0f);
+        assertArrayEquals(scalar.getV(), vector.getV(), 0f);
+    }
+
+    @Test
+    public void matchesScalarEngineForEveryLaneWidth() throws Exception {
+        // 41 x 31: rows that are not a multiple of any lane count, so the tails run too
+        int w = 41, h = 31;
+        VectorSpecies<?>[] species = {FloatVector.SPECIES_64, FloatVector.SPECIES_128,
+                FloatVector.SPECIES_256, FloatVector.SPECIES_512};
+        for (VectorSpecies<?> s : species) {
+            @SuppressWarnings("unchecked")
+            VectorHornSchunckEngine vector = new VectorHornSchunckEngine(w, h, 1, (VectorSpecies<Float>) s);
+            HornSchunckEngine scalar = new HornSchunckEngine(w, h, 1);
+            for (int f = 0; f < 3; f++) {
+                scalar.compute(frame(w, h, f), w, FPS);
+                vector.compute(frame(w, h, f), w, FPS);
+                assertSameFlow(scalar, vector);
+            }
+        }
+    }
+
+    @Test
+    public void matchesScalarEngineInStripes() throws Exception {
+        int w = 64, h = 48;
+        HornSchunckEngine scalar = new HornSchunckEngine(w, h, 1);
+        HornSchunckEngine vector = new VectorHornSchunckEngine(w, h, 1);
+        vector.setThreadCount(3);
+        try {
+            for (int f = 0; f < 3; f++) {
+                scalar.compute(frame(w, h, f), w, FPS);
+                vector.compute(frame(w, h, f), w, FPS);
+            }
+            assertSameFlow(scalar, vector);
+        } finally {
+            vector.shutdown();
+        }
+    }
+
+    @Test
+    public void createPicksVectorEngineWhenAvailable() throws Exception {
+        assertTrue(VectorHornSchunckEngine.isSupported());
+        assertTrue(HornSchunckEngine.create(32, 24, 1) instanceof VectorHornSchunckEngine);
+        System.setProperty("opticalbro.vector", "false");
+        try {
+            assertFalse(HornSchunckEngine.create(32, 24, 1) instanceof VectorHornSchunckEngine);
+        } finally {
+            System.clearProperty("opticalbro.vector");
+        }
+    }
+}
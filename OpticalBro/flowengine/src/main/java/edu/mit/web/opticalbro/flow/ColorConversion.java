@@ -0,0 +1,93 @@
+// Per-pixel conversions for drawing camera frames and gradients, pulled out of
+// MainActivity.DrawOnTop so they can be tested and benchmarked without Android.
+// decodeYUV420SP turns an NV21 preview frame into ARGB_8888 pixels for a Bitmap, with
+// lookup tables in place of the per-pixel multiplies and clamps;
+// threshold colours a gradient image red below -THRESHOLD and green above THRESHOLD, and
+// reshapeTo1DandThreshold does the same for an int[][] image.
+
+package edu.mit.web.opticalbro.flow;
+
+public final class ColorConversion
+{
+    public static final int THRESHOLD = 20;
+    public static final int RED = 0xffff0000, GREEN = 0xff00ff00;
+
+    private ColorConversion () {}
+
+    // Contributions of Y, U and V to the 10.10 fixed point R, G and B sums of the original
+    // per-pixel arithmetic (1192 (Y - 16), 1634 V, -833 V - 400 U, 2066 U), so a pixel
+    // costs table loads and adds instead of multiplies.
+    static final int[] Y_TABLE = new int[256];
+    static final int[] RV_TABLE = new int[256], GV_TABLE = new int[256];
+    static final int[] GU_TABLE = new int[256], BU_TABLE = new int[256];
+
+    // Clamping a sum to 0..0x3FFFF and keeping bits 10..17 is the same as clamping sum >> 10
+    // to 0..255, which this table does for every sum the tables above can add up to.
+    static final int CLAMP_OFFSET = 512;
+    static final int[] CLAMP = new int[2 * CLAMP_OFFSET + 256];
+
+    static {
+        for (int k = 0; k < 256; k++) {
+            Y_TABLE[k] = 1192 * Math.max(0, k - 16);
+            RV_TABLE[k] = 1634 * (k - 128);
+            GV_TABLE[k] = -833 * (k - 128);
+            GU_TABLE[k] = -400 * (k - 128);
+            BU_TABLE[k] = 2066 * (k - 128);
+        }
+        for (int k = 0; k < CLAMP.length; k++) CLAMP[k] = Math.max(0, Math.min(255, k - CLAMP_OFFSET));
+    }
+
+    // Convert image in YUV420SP format to RGB format, bit for bit as the original
+    // multiply-and-clamp loop: two pixels per chroma sample, each from three table sums.
+    public static void decodeYUV420SP (int[] rgb, byte[] yuv420sp, int width, int height)
+    {
+        final int frameSize = width * height;
+        final int[] yTable = Y_TABLE, clamp = CLAMP;
+
+        for (int j = 0, pix = 0; j < height; j++) {
+            int uvp = frameSize + (j >> 1) * width;	// index to start of u and v data for this row
+            int i = 0;
+            for (; i < width - 1; i += 2, pix += 2) {
+                int v = 0xFF & yuv420sp[uvp++];
+                int u = 0xFF & yuv420sp[uvp++];
+                int r = RV_TABLE[v], g = GV_TABLE[v] + GU_TABLE[u], b = BU_TABLE[u];
+                int y = yTable[0xFF & yuv420sp[pix]];
+                rgb[pix] = 0xFF000000 | clamp[((y + r) >> 10) + CLAMP_OFFSET] << 16
+                        | clamp[((y + g) >> 10) + CLAMP_OFFSET] << 8 | clamp[((y + b) >> 10) + CLAMP_OFFSET];
+                y = yTable[0xFF & yuv420sp[pix + 1]];
+                rgb[pix + 1] = 0xFF000000 | clamp[((y + r) >> 10) + CLAMP_OFFSET] << 16
+                        | clamp[((y + g) >> 10) + CLAMP_OFFSET] << 8 | clamp[((y + b) >> 10) + CLAMP_OFFSET];
+            }
+            if (i < width) { // odd width: the last pixel has a chroma sample to itself
+                int v = 0xFF & yuv420sp[uvp];
+                int u = 0xFF & yuv420sp[uvp + 1];
+                int y = yTable[0xFF & yuv420sp[pix]];
+                rgb[pix++] = 0xFF000000 | clamp[((y + RV_TABLE[v]) >> 10) + CLAMP_OFFSET] << 16
+                        | clamp[((y + GV_TABLE[v] + GU_TABLE[u]) >> 10) + CLAMP_OFFSET] << 8
+                        | clamp[((y + BU_TABLE[u]) >> 10) + CLAMP_OFFSET];
+            }
+        }
+    }
+
+    // returns 1D array that visually represents the brightness gradient: the rows of
+    // srcArray, coloured as by threshold() into dstArray
+    public static void reshapeTo1DandThreshold (int[][] srcArray, int[] dstArray, int width, int height)
+    {
+        for (int j = 0, pix = 0; j < height; j++) {
+            for (int i = 0; i < width; i++, pix++) {
+                if (srcArray[j][i] < -THRESHOLD) dstArray[pix] = RED;
+                else if (srcArray[j][i] > THRESHOLD) dstArray[pix] = GREEN;
+            }
+        }
+    }
+
+    // colours the first width * height values of srcArray into dstArray; pixels within the
+    // threshold are left as they were
+    public static void threshold (int[] srcArray, int[] dstArray, int width, int height)
+    {
+        for (int pix = 0; pix < width * height; pix++) {
+            if (srcArray[pix] < -THRESHOLD) dstArray[pix] = RED;
+            else if (srcArray[pix] > THRESHOLD) dstArray[pix] = GREEN;
+        }
+    }
+}
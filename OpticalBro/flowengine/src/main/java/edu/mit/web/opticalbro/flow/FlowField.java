@@ -0,0 +1,57 @@
+// Read-only snapshot of one optical flow result, published by FlowProcessor for rendering.
+// The arrays are owned by the processor and recycled, but a snapshot handed out by
+// FlowProcessor.getLatestFlowField() is never written to while the reader holds it.
+
+package edu.mit.web.opticalbro.flow;
+
+public final class FlowField
+{
+    final int mWidth, mHeight;      // size of the flow grid
+    final float[] u;                // flow in the x direction, mHeight rows of mWidth
+    final float[] v;                // flow in the y direction
+    long mFrameNumber;              // number of the frame this was computed from (1 = first)
+    float mFps;                     // frame rate used to scale E_t for this frame
+
+    FlowField (int width, int height)
+    {
+        mWidth = width;
+        mHeight = height;
+        u = new float[width * height];
+        v = new float[width * height];
+    }
+
+    void copyFrom (HornSchunckEngine engine, long frameNumber, float fps)
+    {
+        System.arraycopy(engine.getU(), 0, u, 0, u.length);
+        System.arraycopy(engine.getV(), 0, v, 0, v.length);
+        mFrameNumber = frameNumber;
+        mFps = fps;
+    }
+
+    public int getWidth () { return mWidth; }
+    public int getHeight () { return mHeight; }
+    public long getFrameNumber () { return mFrameNumber; }
+    public float getFps () { return mFps; }
+
+    public float getU (int x, int y) { return u[y * mWidth + x]; }
+    public float getV (int x, int y) { return v[y * mWidth + x]; }
+
+    // average flow over the 3x3 neighbourhood of (x, y), as drawn by DrawOnTop.drawArrow,
+    // clipped to the grid on its first and last row and column
+    // result goes in out[0] (x velocity) and out[1] (y velocity)
+    public void getAverageFlow (int x, int y, float[] out)
+    {
+        int i0 = Math.max(0, x - 1), i1 = Math.min(mWidth - 1, x + 1);
+        int j0 = Math.max(0, y - 1), j1 = Math.min(mHeight - 1, y + 1);
+        float su = 0, sv = 0;
+        for (int j = j0; j <= j1; j++) {
+            for (int i = i0; i <= i1; i++) {
+                su += u[j * mWidth + i];
+                sv += v[j * mWidth + i];
+            }
+        }
+        int n = (i1 - i0 + 1) * (j1 - j0 + 1);
+        out[0] = su / n;
+        out[1] = sv / n;
+    }
+}
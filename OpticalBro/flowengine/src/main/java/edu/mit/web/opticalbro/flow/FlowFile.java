@@ -0,0 +1,80 @@
+// Binary container for computed flow fields, written by FlowFileWriter and read by
+// FlowFileReader. Little-endian layout:
+//   0   int    MAGIC ("FLOW")
+//   4   int    VERSION
+//   8   int    width, 12 int height (of the flow grid)
+//   16  int    encoding: ENCODING_FLOAT16 or ENCODING_INT8
+//   20  int    index capacity (most frames the file can hold)
+//   24  int    frame count, bumped after each frame's data and index entry are written
+//   28  ...    reserved, zero
+//   64         index, capacity entries of INDEX_ENTRY_SIZE bytes:
+//                long offset of the frame's data, long timestamp (ns), float scale, reserved
+//   64 + capacity * INDEX_ENTRY_SIZE
+//              frame data: the u plane then the v plane, width * height values each,
+//              either IEEE half floats or signed bytes times the frame's scale, in pixels
+//              per second
+// Frames are appended only, so a reader can follow a file while it is being written.
+
+package edu.mit.web.opticalbro.flow;
+
+public final class FlowFile
+{
+    public static final int MAGIC = 0x574F4C46;     // "FLOW" read as a little-endian int
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int INDEX_ENTRY_SIZE = 32;
+
+    public static final int ENCODING_FLOAT16 = 0;   // half float per value, ~3 significant digits
+    public static final int ENCODING_INT8 = 1;      // one byte per value, scaled per frame
+
+    static final int OFFSET_COUNT = 24;
+
+    private FlowFile () {}
+
+    static int bytesPerValue (int encoding)
+    {
+        if (encoding == ENCODING_FLOAT16) return 2;
+        if (encoding == ENCODING_INT8) return 1;
+        throw new IllegalArgumentException("unknown flow encoding " + encoding);
+    }
+
+    // float to IEEE 754 half, rounding to nearest even; overflows to infinity
+    public static short toHalf (float value)
+    {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent == 0xFF)   // infinity or NaN (kept quiet)
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        int e = exponent - 127 + 15;
+        if (e >= 0x1F) return (short) (sign | 0x7C00);
+        if (e <= 0) {           // half subnormal, or zero
+            if (e < -10) return (short) sign;
+            mantissa |= 0x800000;
+            int shift = 14 - e;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1), halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (half & 1) != 0)) half++;
+            return (short) (sign | half);
+        }
+        int half = (e << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1FFF;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) half++;  // may carry into e
+        return (short) (sign | half);
+    }
+
+    public static float fromHalf (short half)
+    {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        if (exponent == 0x1F)
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        if (exponent == 0) {    // subnormal: mantissa * 2^-24
+            float value = mantissa * (1f / (1 << 24));
+            return (sign != 0) ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
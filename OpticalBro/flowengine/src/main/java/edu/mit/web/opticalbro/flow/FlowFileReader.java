@@ -0,0 +1,160 @@
+// Random access to the frames of a FlowFile through memory mappings. Frame N is found
+// through its index entry in O(1), and values are decoded straight from the mapped pages
+// (getU / getV), or the raw planes can be taken as ByteBuffer views; nothing is copied
+// into Java arrays. The frame count is read from the mapped header on every call, so
+// frames appended by a writer after the reader was opened show up as they land.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class FlowFileReader implements Closeable
+{
+    static final long MAX_CHUNK = 1 << 30;  // bytes of frame data mapped at once
+
+    final RandomAccessFile mFile;
+    final FileChannel mChannel;
+    final int mWidth, mHeight, mEncoding, mCapacity;
+    final int mFrameBytes;          // both planes of one frame
+    final MappedByteBuffer mHeader; // header and index
+    final int mFramesPerChunk;
+    final ByteBuffer[] mChunks;     // frame data, mapped on first use
+    final int[] mChunkFrames;       // how many frames each mapping covers
+
+    public FlowFileReader (File file) throws IOException
+    {
+        this(file, MAX_CHUNK);
+    }
+
+    FlowFileReader (File file, long maxChunk) throws IOException
+    {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        try {
+            if (mFile.length() < FlowFile.HEADER_SIZE)
+                throw new IOException(file + " is not a flow file");
+            ByteBuffer header = ByteBuffer.allocate(FlowFile.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && mChannel.read(header, header.position()) > 0) { }
+            if (header.getInt(0) != FlowFile.MAGIC)
+                throw new IOException(file + " is not a flow file");
+            if (header.getInt(4) != FlowFile.VERSION)
+                throw new IOException("unsupported flow file version " + header.getInt(4));
+            mWidth = header.getInt(8);
+            mHeight = header.getInt(12);
+            mEncoding = header.getInt(16);
+            mCapacity = header.getInt(20);
+            if (mEncoding != FlowFile.ENCODING_FLOAT16 && mEncoding != FlowFile.ENCODING_INT8)
+                throw new IOException("unknown flow encoding " + mEncoding);
+            mFrameBytes = 2 * mWidth * mHeight * FlowFile.bytesPerValue(mEncoding);
+            mHeader = mChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    FlowFile.HEADER_SIZE + (long) mCapacity * FlowFile.INDEX_ENTRY_SIZE);
+            mHeader.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mFramesPerChunk = (int) Math.max(1, maxChunk / mFrameBytes);
+        int chunks = (mCapacity + mFramesPerChunk - 1) / mFramesPerChunk;
+        mChunks = new ByteBuffer[chunks];
+        mChunkFrames = new int[chunks];
+    }
+
+    public int getWidth () { return mWidth; }
+    public int getHeight () { return mHeight; }
+    public int getEncoding () { return mEncoding; }
+    public int getCapacity () { return mCapacity; }
+    public int getFrameCount () { return mHeader.getInt(FlowFile.OFFSET_COUNT); }
+
+    public long getTimestamp (int frame)
+    {
+        return mHeader.getLong(entry(frame) + 8);
+    }
+
+    // pixels per second per int8 step (1 for float16)
+    public float getScale (int frame)
+    {
+        return mHeader.getFloat(entry(frame) + 16);
+    }
+
+    public float getU (int frame, int x, int y) throws IOException
+    {
+        return value(frame, y * mWidth + x);
+    }
+
+    public float getV (int frame, int x, int y) throws IOException
+    {
+        return value(frame, mWidth * mHeight + y * mWidth + x);
+    }
+
+    // u plane of a frame as a little-endian view of the mapping (half floats or bytes)
+    public ByteBuffer getUPlane (int frame) throws IOException
+    {
+        return plane(frame, 0);
+    }
+
+    public ByteBuffer getVPlane (int frame) throws IOException
+    {
+        return plane(frame, mFrameBytes / 2);
+    }
+
+    float value (int frame, int k) throws IOException
+    {
+        ByteBuffer data = data(frame);
+        int base = dataOffset(frame);
+        if (mEncoding == FlowFile.ENCODING_FLOAT16) return FlowFile.fromHalf(data.getShort(base + 2 * k));
+        return data.get(base + k) * getScale(frame);
+    }
+
+    ByteBuffer plane (int frame, int offset) throws IOException
+    {
+        ByteBuffer view = data(frame).duplicate();
+        int base = dataOffset(frame) + offset;
+        view.position(base);
+        view.limit(base + mFrameBytes / 2);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int entry (int frame)
+    {
+        if (frame < 0 || frame >= getFrameCount())
+            throw new IndexOutOfBoundsException("frame " + frame + " of " + getFrameCount());
+        return FlowFile.HEADER_SIZE + frame * FlowFile.INDEX_ENTRY_SIZE;
+    }
+
+    // offset of a frame's data inside its chunk's mapping
+    int dataOffset (int frame)
+    {
+        int chunk = frame / mFramesPerChunk;
+        long first = mHeader.getLong(entry(chunk * mFramesPerChunk));
+        return (int) (mHeader.getLong(entry(frame)) - first);
+    }
+
+    // the mapping that holds the frame, (re)mapped when the frame was appended after it
+    ByteBuffer data (int frame) throws IOException
+    {
+        int chunk = frame / mFramesPerChunk;
+        int inChunk = frame - chunk * mFramesPerChunk;
+        if (mChunks[chunk] == null || inChunk >= mChunkFrames[chunk]) {
+            int first = chunk * mFramesPerChunk;
+            int frames = Math.min(mFramesPerChunk, getFrameCount() - first);
+            long start = mHeader.getLong(entry(first));
+            long end = mHeader.getLong(entry(first + frames - 1)) + mFrameBytes;
+            mChunks[chunk] = mChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mChunkFrames[chunk] = frames;
+        }
+        return mChunks[chunk];
+    }
+
+    public void close () throws IOException
+    {
+        mFile.close();
+    }
+}
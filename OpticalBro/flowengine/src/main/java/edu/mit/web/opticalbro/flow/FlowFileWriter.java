@@ -0,0 +1,112 @@
+// Appends flow fields to a new FlowFile. Each append() encodes u and v into one reused
+// direct buffer, writes it at the end of the file through the FileChannel, then fills in
+// the frame's index entry and finally the frame count, so a reader never sees a frame
+// whose data isn't there yet. Nothing is allocated per frame.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class FlowFileWriter implements Closeable
+{
+    final RandomAccessFile mFile;
+    final FileChannel mChannel;
+    final int mWidth, mHeight, mEncoding, mCapacity;
+    final ByteBuffer mFrame;        // encoded u and v of one frame
+    final ByteBuffer mEntry;        // one index entry
+    final ByteBuffer mCount;        // the frame count field
+    int mFrameCount;
+    long mEnd;                      // where the next frame's data goes
+
+    // capacity is the most frames the file will hold (its index is allocated up front)
+    public FlowFileWriter (File file, int width, int height, int encoding, int capacity) throws IOException
+    {
+        if (width < 1 || height < 1 || capacity < 0)
+            throw new IllegalArgumentException("bad flow file size " + width + " x " + height + " x " + capacity);
+        int bytes = FlowFile.bytesPerValue(encoding);
+        mWidth = width;
+        mHeight = height;
+        mEncoding = encoding;
+        mCapacity = capacity;
+        mFrame = ByteBuffer.allocateDirect(2 * width * height * bytes).order(ByteOrder.LITTLE_ENDIAN);
+        mEntry = ByteBuffer.allocateDirect(FlowFile.INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mCount = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            mFile.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(FlowFile.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(FlowFile.MAGIC).putInt(FlowFile.VERSION).putInt(width).putInt(height)
+                    .putInt(encoding).putInt(capacity).putInt(0);
+            header.clear();
+            write(header, 0);
+            mEnd = FlowFile.HEADER_SIZE + (long) capacity * FlowFile.INDEX_ENTRY_SIZE;
+            mFile.setLength(mEnd);  // zeroed index
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public int getFrameCount () { return mFrameCount; }
+
+    // Add one frame: u and v hold width * height values in pixels per second (e.g.
+    // HornSchunckEngine.getU() / getV()), timestamp is whatever clock the caller uses.
+    public void append (float[] u, float[] v, long timestamp) throws IOException
+    {
+        if (mFrameCount == mCapacity)
+            throw new IllegalStateException("flow file is full (" + mCapacity + " frames)");
+        final int n = mWidth * mHeight;
+        float scale = 1f;
+        mFrame.clear();
+        if (mEncoding == FlowFile.ENCODING_FLOAT16) {
+            for (int k = 0; k < n; k++) mFrame.putShort(FlowFile.toHalf(u[k]));
+            for (int k = 0; k < n; k++) mFrame.putShort(FlowFile.toHalf(v[k]));
+        }
+        else {
+            // one step per 1/127 of the largest magnitude in the frame
+            float max = 0;
+            for (int k = 0; k < n; k++) max = Math.max(max, Math.max(Math.abs(u[k]), Math.abs(v[k])));
+            if (max > 0) scale = max / 127;
+            float inverse = 1 / scale;
+            for (int k = 0; k < n; k++) mFrame.put(quantize(u[k] * inverse));
+            for (int k = 0; k < n; k++) mFrame.put(quantize(v[k] * inverse));
+        }
+        mFrame.flip();
+        write(mFrame, mEnd);
+
+        mEntry.clear();
+        mEntry.putLong(mEnd).putLong(timestamp).putFloat(scale);
+        mEntry.clear();
+        write(mEntry, FlowFile.HEADER_SIZE + (long) mFrameCount * FlowFile.INDEX_ENTRY_SIZE);
+        mEnd += 2L * n * FlowFile.bytesPerValue(mEncoding);
+
+        mFrameCount++;
+        mCount.clear();
+        mCount.putInt(0, mFrameCount);
+        write(mCount, FlowFile.OFFSET_COUNT);
+    }
+
+    static byte quantize (float steps)
+    {
+        int q = Math.round(steps);
+        return (byte) Math.max(-127, Math.min(127, q));
+    }
+
+    void write (ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) position += mChannel.write(buffer, position);
+    }
+
+    public void close () throws IOException
+    {
+        mFile.close();
+    }
+}
@@ -0,0 +1,203 @@
+// Frame-processing stage: runs the HornSchunckEngine on its own worker thread.
+// The camera callback hands frames in with submit(), which never blocks on the solver:
+// if the worker is still busy the waiting frame is simply replaced (latest wins) and
+// counted as dropped. Frames are FrameBufferPool buffers passed by reference; the
+// processor owns a buffer from submit() until it gives it back to the pool.
+// Results are published as FlowField snapshots through a lock-free triple buffer,
+// so the UI thread only ever renders and nothing is allocated per frame.
+// With setTimings() the time frames wait for the worker, the interval between processed
+// frames and the engine's stages are recorded into a PipelineTimings.
+// Frames carry their capture time (submit(frame, timestamp)), which the engine uses to
+// scale E_t by the real time between the frames it compares.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FlowProcessor implements Runnable
+{
+    public interface Listener
+    { // called on the worker thread each time a new FlowField has been published
+        void onFlowFieldReady (FlowProcessor processor);
+    }
+
+    final HornSchunckEngine mEngine;
+    final FrameBufferPool mPool;    // where frame buffers go back to when we are done with them
+    final int mStride;              // row stride of the incoming Y plane
+    Listener mListener;
+
+    // incoming frames: one waiting slot (null if empty); the worker holds the one it is on
+    final Object mLock = new Object();
+    byte[] mPendingFrame;
+    long mPendingTime;              // System.nanoTime() when mPendingFrame was captured
+    long mSubmittedFrames;
+    long mDroppedFrames;
+
+    // outgoing results: triple buffer of snapshots
+    static final int DIRTY = 4;     // flag set in mMiddle when it holds an unread result
+    final FlowField[] mFields = new FlowField[3];
+    final AtomicInteger mMiddle = new AtomicInteger(1);
+    int mBack = 2;                  // written by the worker thread only
+    int mFront = 0;                 // read by the reader thread only
+
+    Thread mThread;
+    volatile boolean mRunning;
+    volatile long mProcessedFrames;
+    long mTimeOfLastFrame;          // System.nanoTime()
+    PipelineTimings mTimings;       // null when not measuring
+
+    public FlowProcessor (HornSchunckEngine engine, FrameBufferPool pool, int stride)
+    {
+        mEngine = engine;
+        mPool = pool;
+        mStride = stride;
+        for (int k = 0; k < mFields.length; k++)
+            mFields[k] = new FlowField(engine.getFlowWidth(), engine.getFlowHeight());
+    }
+
+    public void setListener (Listener listener) { mListener = listener; }
+
+    // measure the pipeline (and the engine) into timings, or stop measuring with null;
+    // call before start()
+    public void setTimings (PipelineTimings timings)
+    {
+        mTimings = timings;
+        mEngine.setTimings(timings);
+    }
+
+    public PipelineTimings getTimings () { return mTimings; }
+
+    public synchronized void start ()
+    {
+        if (mThread != null) return;
+        mRunning = true;
+        mTimeOfLastFrame = System.nanoTime();
+        mThread = new Thread(this, "FlowProcessor");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop ()
+    { // stop the worker and wait for it to finish the frame it is on
+        if (mThread == null) return;
+        mRunning = false;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        byte[] pending;
+        synchronized (mLock) {
+            pending = mPendingFrame;
+            mPendingFrame = null;
+        }
+        if (pending != null) mPool.release(pending);
+    }
+
+    // Hand a frame buffer from the pool to the worker; it is not copied, and the caller must
+    // not touch it afterwards. Returns immediately; a frame still waiting from before is
+    // given back to the pool and counted as dropped. A buffer the pool doesn't own (e.g. one
+    // of a previous pool the camera still had queued) is ignored.
+    public void submit (byte[] frame)
+    {
+        submit(frame, System.nanoTime());
+    }
+
+    // the same for a frame captured at timestamp (System.nanoTime())
+    public void submit (byte[] frame, long timestamp)
+    {
+        if (!mPool.owns(frame)) return;
+        byte[] dropped;
+        synchronized (mLock) {
+            dropped = mPendingFrame;
+            if (dropped != null) mDroppedFrames++;
+            mPendingFrame = frame;
+            mPendingTime = timestamp;
+            mSubmittedFrames++;
+            mLock.notify();
+        }
+        if (dropped != null) mPool.release(dropped);
+    }
+
+    @Override
+    public void run ()
+    {
+        while (true) {
+            byte[] frame;
+            long captured;
+            synchronized (mLock) {
+                while (mRunning && mPendingFrame == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mRunning) return;
+                frame = mPendingFrame;
+                captured = mPendingTime;
+                mPendingFrame = null;
+            }
+            PipelineTimings timings = mTimings;
+            if (timings != null) timings.record(PipelineTimings.Stage.QUEUE, System.nanoTime() - captured);
+            try {
+                process(frame, captured);
+            } finally {
+                mPool.release(frame);
+            }
+        }
+    }
+
+    void process (byte[] frame, long captured)
+    {
+        long now = System.nanoTime();
+        if (mTimings != null && mProcessedFrames > 0)
+            mTimings.record(PipelineTimings.Stage.FRAME, now - mTimeOfLastFrame);
+        mTimeOfLastFrame = now;
+
+        // E_t is scaled by the time between the captures of this frame and the last one
+        mEngine.computeAt(frame, mStride, captured);
+        float fps = mEngine.getFrameRate();
+        mProcessedFrames++;
+
+        // publish: fill the back buffer, then swap it with the middle one
+        mFields[mBack].copyFrom(mEngine, mProcessedFrames, fps);
+        mBack = mMiddle.getAndSet(mBack | DIRTY) & ~DIRTY;
+
+        Listener listener = mListener;
+        if (listener != null) listener.onFlowFieldReady(this);
+    }
+
+    // Most recent result, or null if nothing has been computed yet. Meant to be called from a
+    // single reader (the UI thread); the returned snapshot stays unchanged until that thread
+    // calls this method again.
+    public FlowField getLatestFlowField ()
+    {
+        if ((mMiddle.get() & DIRTY) != 0)
+            mFront = mMiddle.getAndSet(mFront) & ~DIRTY;
+        FlowField field = mFields[mFront];
+        return (field.getFrameNumber() == 0) ? null : field;
+    }
+
+    public HornSchunckEngine getEngine () { return mEngine; }
+    public FrameBufferPool getPool () { return mPool; }
+    public long getProcessedFrames () { return mProcessedFrames; }
+
+    public long getSubmittedFrames ()
+    {
+        synchronized (mLock) {
+            return mSubmittedFrames;
+        }
+    }
+
+    public long getDroppedFrames ()
+    {
+        synchronized (mLock) {
+            return mDroppedFrames;
+        }
+    }
+}
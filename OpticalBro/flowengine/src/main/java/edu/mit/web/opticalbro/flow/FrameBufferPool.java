@@ -0,0 +1,85 @@
+// Fixed set of preview frame buffers, allocated once and then recycled forever.
+// On the phone the buffers live in the camera's queue (Camera.addCallbackBuffer): the
+// camera fills one, onPreviewFrame hands it to the FlowProcessor without copying, and the
+// processor gives it back with release() when the flow for it has been computed or when
+// a newer frame replaced it. Without a sink (desktop, tests) free buffers are kept here
+// and handed out with acquire().
+
+package edu.mit.web.opticalbro.flow;
+
+public class FrameBufferPool
+{
+    public interface Sink
+    { // receives buffers as they become free, e.g. Camera.addCallbackBuffer
+        void addBuffer (byte[] buffer);
+    }
+
+    final int mBufferSize;
+    final byte[][] mBuffers;        // every buffer this pool owns
+    final byte[][] mFree;           // stack of free buffers (only used without a sink)
+    int mFreeCount;
+    Sink mSink;
+
+    public FrameBufferPool (int count, int bufferSize)
+    {
+        if (count < 1 || bufferSize < 1)
+            throw new IllegalArgumentException("bad pool size " + count + " x " + bufferSize);
+        mBufferSize = bufferSize;
+        mBuffers = new byte[count][];
+        mFree = new byte[count][];
+        for (int k = 0; k < count; k++) {
+            mBuffers[k] = new byte[bufferSize];
+            mFree[k] = mBuffers[k];
+        }
+        mFreeCount = count;
+    }
+
+    // From now on free buffers go straight to the sink; whatever is free right now is fed
+    // to it immediately. Pass null to keep free buffers in the pool again.
+    public synchronized void setSink (Sink sink)
+    {
+        mSink = sink;
+        if (sink == null) return;
+        while (mFreeCount > 0) {
+            byte[] buffer = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+            sink.addBuffer(buffer);
+        }
+    }
+
+    // a free buffer, or null if they are all in use (or all with the sink)
+    public synchronized byte[] acquire ()
+    {
+        if (mFreeCount == 0) return null;
+        byte[] buffer = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        return buffer;
+    }
+
+    // give a buffer back; may be called from any thread
+    public synchronized void release (byte[] buffer)
+    {
+        if (!owns(buffer))
+            throw new IllegalArgumentException("buffer does not belong to this pool");
+        if (mSink != null) {
+            mSink.addBuffer(buffer);
+            return;
+        }
+        for (int k = 0; k < mFreeCount; k++) {
+            if (mFree[k] == buffer) throw new IllegalStateException("buffer released twice");
+        }
+        mFree[mFreeCount++] = buffer;
+    }
+
+    public boolean owns (byte[] buffer)
+    {
+        for (byte[] b : mBuffers) {
+            if (b == buffer) return true;
+        }
+        return false;
+    }
+
+    public int getBufferSize () { return mBufferSize; }
+    public int getBufferCount () { return mBuffers.length; }
+    public synchronized int getFreeCount () { return mFreeCount; }
+}
@@ -0,0 +1,108 @@
+// Raw recording of preview frames, so flow can be recomputed offline from what the camera
+// saw. Little-endian file layout:
+//   0  int    MAGIC ("NV21")
+//   4  int    width
+//   8  int    height
+//   12 int    frame count
+//   16 float  frame rate the frames were captured at
+//   20 int    bytes per frame (width * height * 3 / 2 for NV21, width * height for Y only)
+//   24 ...    reserved, zero
+//   32        frames, back to back
+// The reader maps the file in chunks of whole frames and hands out each frame as a
+// read-only ByteBuffer view of the mapping, so nothing is copied.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class FrameDump implements Closeable
+{
+    public static final int MAGIC = 0x3132564E;    // "NV21" read as a little-endian int
+    public static final int HEADER_SIZE = 32;
+    static final long MAX_CHUNK = 1 << 30;          // bytes mapped at once (mappings are int sized)
+
+    final RandomAccessFile mFile;
+    final int mWidth, mHeight, mFrameCount, mFrameSize;
+    final float mFrameRate;
+    final int mFramesPerChunk;
+    final MappedByteBuffer[] mChunks;   // mapped on first use
+
+    public FrameDump (File file) throws IOException
+    {
+        this(file, MAX_CHUNK);
+    }
+
+    FrameDump (File file, long maxChunk) throws IOException
+    {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            mFile.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a frame dump");
+            mWidth = header.getInt(4);
+            mHeight = header.getInt(8);
+            mFrameCount = header.getInt(12);
+            mFrameRate = header.getFloat(16);
+            mFrameSize = header.getInt(20);
+            if (mWidth < 1 || mHeight < 1 || mFrameCount < 0 || mFrameSize < mWidth * mHeight)
+                throw new IOException("bad frame dump header in " + file);
+            if (mFile.length() < HEADER_SIZE + (long) mFrameCount * mFrameSize)
+                throw new IOException(file + " is shorter than its " + mFrameCount + " frames");
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mFramesPerChunk = (int) Math.max(1, maxChunk / mFrameSize);
+        mChunks = new MappedByteBuffer[(mFrameCount + mFramesPerChunk - 1) / mFramesPerChunk];
+    }
+
+    // header for a dump of frameCount frames of frameSize bytes, position 0, limit 32
+    public static ByteBuffer header (int width, int height, int frameCount, float frameRate, int frameSize)
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(width).putInt(height).putInt(frameCount)
+                .putFloat(frameRate).putInt(frameSize);
+        header.clear();
+        return header;
+    }
+
+    public int getWidth () { return mWidth; }
+    public int getHeight () { return mHeight; }
+    public int getFrameCount () { return mFrameCount; }
+    public float getFrameRate () { return mFrameRate; }
+    public int getFrameSize () { return mFrameSize; }
+
+    // frame 'index' as a read-only view of the mapped file; Y plane first, stride = width
+    public ByteBuffer getFrame (int index) throws IOException
+    {
+        if (index < 0 || index >= mFrameCount)
+            throw new IndexOutOfBoundsException("frame " + index + " of " + mFrameCount);
+        int chunk = index / mFramesPerChunk;
+        MappedByteBuffer mapped = mChunks[chunk];
+        if (mapped == null) {
+            long first = (long) chunk * mFramesPerChunk;
+            int frames = (int) Math.min(mFramesPerChunk, mFrameCount - first);
+            mapped = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE + first * mFrameSize, (long) frames * mFrameSize);
+            mChunks[chunk] = mapped;
+        }
+        ByteBuffer frame = mapped.duplicate();
+        int offset = (index - chunk * mFramesPerChunk) * mFrameSize;
+        frame.position(offset).limit(offset + mFrameSize);
+        return frame.slice();
+    }
+
+    public void close () throws IOException
+    {
+        mFile.close();
+    }
+}
@@ -0,0 +1,206 @@
+// Records the (downscaled) Y plane of preview frames into a FrameDump file, to replay
+// exactly what a device's camera delivered through FlowCli later.
+// record() runs on the camera callback thread and never blocks: it copies the Y plane into
+// the next free slot of a single-producer / single-consumer ring and publishes it with an
+// ordered write of the head counter. A background thread drains the ring into the file,
+// which is preallocated for maxFrames frames and written through memory mappings. When the
+// ring is full (the disk can't keep up) or the file is, the frame is dropped and counted.
+// Frames are downscaled the way the engine decodes them (setDownsampling), so a recording
+// replayed at factor 1 gives the engine the same input it had live.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class FrameRecorder implements Runnable
+{
+    final int mWidth, mHeight, mDownscalingFactor, mFrameSize;
+    final int mMaxFrames;
+    final RandomAccessFile mFile;
+    final MappedByteBuffer mHeader;
+    final MappedByteBuffer[] mChunks;   // file data, mapped by the writer as it gets there
+    final int mFramesPerChunk;
+
+    // the ring: slot (n % length) holds frame n; head is written by record() only, tail by
+    // the writer only, so head - tail frames are waiting
+    final byte[][] mSlots;
+    final AtomicLong mHead = new AtomicLong();
+    final AtomicLong mTail = new AtomicLong();
+
+    Thread mThread;
+    volatile boolean mStopping;
+    volatile int mWrittenFrames;
+    volatile IOException mFailure;
+    long mDroppedFrames;            // only touched by the producer
+    HornSchunckEngine.Downsampling mDownsampling = HornSchunckEngine.Downsampling.POINT;
+    int[] mColumnSums;              // BOX only, as in HornSchunckEngine.decodeBox
+
+    // width / height are the full preview size; frames are stored divided by
+    // downscalingFactor in each direction, with the sampling set by setDownsampling()
+    public FrameRecorder (File file, int width, int height, int downscalingFactor,
+                          float frameRate, int maxFrames, int ringSlots) throws IOException
+    {
+        if (downscalingFactor < 1 || width / downscalingFactor < 1 || height / downscalingFactor < 1)
+            throw new IllegalArgumentException("bad recording size " + width + " x " + height + " / " + downscalingFactor);
+        if (maxFrames < 1 || ringSlots < 1)
+            throw new IllegalArgumentException("bad recording length " + maxFrames + " / " + ringSlots);
+        mWidth = width / downscalingFactor;
+        mHeight = height / downscalingFactor;
+        mDownscalingFactor = downscalingFactor;
+        mFrameSize = mWidth * mHeight;
+        mMaxFrames = maxFrames;
+        mSlots = new byte[ringSlots][mFrameSize];
+
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mFile.setLength(FrameDump.HEADER_SIZE + (long) maxFrames * mFrameSize);
+            FileChannel channel = mFile.getChannel();
+            mHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, FrameDump.HEADER_SIZE);
+            mHeader.put(FrameDump.header(mWidth, mHeight, 0, frameRate, mFrameSize));
+            mHeader.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mFramesPerChunk = (int) Math.max(1, FrameDump.MAX_CHUNK / mFrameSize);
+        mChunks = new MappedByteBuffer[(maxFrames + mFramesPerChunk - 1) / mFramesPerChunk];
+    }
+
+    // how frames are downscaled: set it to the engine's downsampling, before start()
+    public void setDownsampling (HornSchunckEngine.Downsampling downsampling)
+    {
+        mDownsampling = downsampling;
+        if (downsampling == HornSchunckEngine.Downsampling.BOX && mColumnSums == null)
+            mColumnSums = new int[mWidth * mDownscalingFactor];
+    }
+
+    public HornSchunckEngine.Downsampling getDownsampling () { return mDownsampling; }
+
+    public void start ()
+    {
+        mThread = new Thread(this, "FrameRecorder");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    // Copy the Y plane of an NV21 frame (rows of 'stride' bytes) into the ring. Camera
+    // thread only; returns false if the frame was dropped.
+    public boolean record (byte[] frame, int stride)
+    {
+        long head = mHead.get();
+        if (head - mTail.get() == mSlots.length || head >= mMaxFrames || mStopping) {
+            mDroppedFrames++;
+            return false;
+        }
+        byte[] slot = mSlots[(int) (head % mSlots.length)];
+        final int step = mDownscalingFactor;
+        if (step == 1 && stride == mWidth) {
+            System.arraycopy(frame, 0, slot, 0, mFrameSize);
+        }
+        else if (step > 1 && mDownsampling == HornSchunckEngine.Downsampling.BOX) {
+            // rounded block means, bit for bit as HornSchunckEngine.decodeBox
+            final int columns = mWidth * step, half = step * step / 2;
+            final long reciprocal = HornSchunckEngine.reciprocal(step * step);
+            final int[] sums = mColumnSums;
+            for (int j = 0, out = 0; j < mHeight; j++) {
+                int row = j * step * stride;
+                for (int x = 0; x < columns; x++) sums[x] = 0xFF & frame[row + x];
+                for (int r = 1; r < step; r++) {
+                    row += stride;
+                    for (int x = 0; x < columns; x++) sums[x] += 0xFF & frame[row + x];
+                }
+                for (int i = 0, x = 0; i < mWidth; i++, out++) {
+                    int sum = half;
+                    for (int k = 0; k < step; k++, x++) sum += sums[x];
+                    slot[out] = (byte) ((sum * reciprocal) >>> 32);
+                }
+            }
+        }
+        else {
+            for (int j = 0, out = 0; j < mHeight; j++) {
+                int pix = j * step * stride;
+                for (int i = 0; i < mWidth; i++, out++, pix += step) slot[out] = frame[pix];
+            }
+        }
+        mHead.lazySet(head + 1);    // publishes the slot contents to the writer
+        LockSupport.unpark(mThread);
+        return true;
+    }
+
+    public void run ()
+    {
+        try {
+            while (true) {
+                long tail = mTail.get();
+                if (tail == mHead.get()) {
+                    if (mStopping && tail == mHead.get()) break;
+                    LockSupport.parkNanos(this, 10000000L);   // woken by record() or stop()
+                    continue;
+                }
+                write((int) tail, mSlots[(int) (tail % mSlots.length)]);
+                mTail.lazySet(tail + 1);    // the slot can be reused
+            }
+        } catch (IOException e) {
+            mFailure = e;
+        }
+    }
+
+    void write (int index, byte[] slot) throws IOException
+    {
+        int chunk = index / mFramesPerChunk;
+        MappedByteBuffer mapped = mChunks[chunk];
+        if (mapped == null) {
+            long first = (long) chunk * mFramesPerChunk;
+            int frames = (int) Math.min(mFramesPerChunk, mMaxFrames - first);
+            mapped = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    FrameDump.HEADER_SIZE + first * mFrameSize, (long) frames * mFrameSize);
+            mChunks[chunk] = mapped;
+        }
+        mapped.position((index - chunk * mFramesPerChunk) * mFrameSize);
+        mapped.put(slot);
+        mWrittenFrames = index + 1;
+        mHeader.putInt(12, mWrittenFrames);     // frame count, so a cut-off file is still valid
+    }
+
+    // write out what is in the ring, flush the file and close it
+    public void stop () throws IOException
+    {
+        mStopping = true;
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+            boolean interrupted = false;
+            while (mThread.isAlive()) {
+                try {
+                    mThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        try {
+            for (MappedByteBuffer chunk : mChunks) {
+                if (chunk != null) chunk.force();
+            }
+            mHeader.force();
+        } finally {
+            mFile.close();
+        }
+        if (mFailure != null) throw mFailure;
+    }
+
+    public int getWidth () { return mWidth; }
+    public int getHeight () { return mHeight; }
+    public int getWrittenFrames () { return mWrittenFrames; }
+    public long getRecordedFrames () { return mHead.get(); }   // accepted into the ring
+    public long getDroppedFrames () { return mDroppedFrames; }
+    public boolean isFull () { return mHead.get() >= mMaxFrames; }
+}
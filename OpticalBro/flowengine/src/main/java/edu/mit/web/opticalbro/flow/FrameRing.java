@@ -0,0 +1,60 @@
+// Ring of the last few grayscale frames, allocated once. The next frame is decoded straight
+// into next() (the oldest frame's buffer) and commit() makes it the newest by stepping an
+// index, so keeping history never copies a frame. get(age) is the frame 'age' commits ago
+// (0 = the newest). All buffers start out zero, which is what the first frame is compared
+// against.
+
+package edu.mit.web.opticalbro.flow;
+
+public class FrameRing
+{
+    final int[][] mFrames;
+    int mNewest;                    // slot of the newest frame
+    long mCommitted;                // frames committed so far
+
+    public FrameRing (int size, int frameLength)
+    {
+        if (size < 2) throw new IllegalArgumentException("frame ring of " + size + " frames");
+        mFrames = new int[size][frameLength];
+        mNewest = size - 1;
+    }
+
+    public int size () { return mFrames.length; }
+
+    // frames that have been committed and are still in the ring
+    public int available ()
+    {
+        return (int) Math.min(mCommitted, mFrames.length);
+    }
+
+    // buffer to decode the next frame into; it holds the oldest frame until then, so while
+    // the next frame is being filled in only ages 0 .. size() - 2 are intact
+    public int[] next ()
+    {
+        int slot = mNewest + 1;
+        return mFrames[(slot == mFrames.length) ? 0 : slot];
+    }
+
+    // the frame in next() becomes the newest
+    public void commit ()
+    {
+        mNewest = (mNewest + 1 == mFrames.length) ? 0 : mNewest + 1;
+        mCommitted++;
+    }
+
+    public int[] get (int age)
+    {
+        if (age < 0 || age >= mFrames.length)
+            throw new IndexOutOfBoundsException("frame age " + age + " in a ring of " + mFrames.length);
+        int slot = mNewest - age;
+        return mFrames[(slot < 0) ? slot + mFrames.length : slot];
+    }
+
+    // forget the history: every frame reads as zero again
+    public void clear ()
+    {
+        for (int[] frame : mFrames) java.util.Arrays.fill(frame, 0);
+        mNewest = mFrames.length - 1;
+        mCommitted = 0;
+    }
+}
@@ -0,0 +1,921 @@
+// Horn-Schunck optical flow, pulled out of MainActivity.DrawOnTop.onDraw
+// Plain Java (no android.*) so it can be unit-tested and benchmarked on a desktop JVM.
+// All working buffers are flat arrays allocated once per resolution, so compute()
+// does not allocate anything per frame. With setThreadCount(n > 1) the iterations are
+// split into n horizontal stripes of rows run on a StripeExecutor. With setPyramid() the
+// flow is instead solved coarse-to-fine by PyramidHornSchunck, for larger motions.
+// setSolver() picks how the single scale iterations are done: the original Jacobi scheme
+// (all averages, then all updates), red-black successive over-relaxation in place, or
+// the Jacobi scheme in Q16 fixed point for phones with slow floating point.
+// create() picks the Vector API kernels from the flowdesktop module when they are on the
+// classpath and the JVM supports them, and this scalar engine otherwise.
+// setDownsampling(BOX) averages each downscalingFactor x downscalingFactor block of the
+// camera image instead of taking one pixel of it, which cuts the aliasing in the gradients.
+// setTimings() records how long decoding, gradients and the iterations take per frame.
+// computeAt() takes the frame's capture time instead of a frame rate and scales E_t by the
+// time between the two frames it compares, optionally smoothed (setIntervalSmoothing).
+// setTemporalStencil() takes E_t from a centred difference over 3 or 5 frames of the frame
+// ring instead of from the last two frames, which is more accurate on clean input, at 1 or 2
+// frames of delay.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class HornSchunckEngine
+{
+    int mWidth, mHeight;            // size of the (downscaled) grayscale image
+    int mFlowWidth, mFlowHeight;    // size of the gradient / flow grid (one less in each dimension)
+    int mDownscalingFactor;         // the camera image is sampled every mDownscalingFactor pixels
+
+    public enum Downsampling
+    {
+        POINT,          // top left pixel of each block, as the original decodeYUV420SPGrayscale
+        BOX             // rounded mean of each block
+    }
+
+    Downsampling mDownsampling = Downsampling.POINT;
+
+    public enum TemporalStencil
+    {
+        TWO_FRAME(2),   // the original 2x2x2 cube over the last two frames
+        THREE_FRAME(3), // (I[t] - I[t-2]) / 2, flow at frame t-1
+        FIVE_FRAME(5);  // (-I[t] + 8 I[t-1] - 8 I[t-3] + I[t-4]) / 12, flow at frame t-2
+
+        final int mFrames;
+
+        TemporalStencil (int frames) { mFrames = frames; }
+
+        public int getFrames () { return mFrames; }
+    }
+
+    TemporalStencil mStencil = TemporalStencil.TWO_FRAME;
+    int[] mColumnSums;              // BOX: camera column sums over the rows of one block
+
+    // Frames are kept in a ring (setFrameHistory() frames, 2 by default); these two are
+    // views of it: the buffer the next frame is decoded into and the newest frame in it.
+    FrameRing mFrames;
+    int[] mGrayscaleData;           // current frame, mHeight rows of mWidth
+    int[] mPrevGrayscaleData;       // previous frame
+
+    // Derivatives of brightness in x, y, and time (mFlowHeight rows of mFlowWidth)
+    int[] E_x;
+    int[] E_y;
+    int[] E_t;
+
+    // optical flow in the x and y directions
+    float[] u;
+    float[] v;
+    // optical flow local average (used in intermediate computation)
+    float[] uAvg;
+    float[] vAvg;
+
+    // The velocity update only depends on the gradients and lambda through
+    // E_x / (1 + lambda * (E_x^2 + E_y^2)) and the same for E_y, so these are worked out
+    // once per frame instead of in every iteration. mWeightsValid is cleared by new
+    // gradients or a different lambda.
+    float[] mWeightX;
+    float[] mWeightY;
+    boolean mWeightsValid;
+    boolean mUpdateWeights;         // set by computeFlow() for the stripes
+
+    public enum Solver
+    {
+        JACOBI,         // averages from the previous iteration's field, two buffers
+        RED_BLACK_SOR,  // checkerboard Gauss-Seidel with over-relaxation, updated in place
+        FIXED_POINT     // Jacobi on Q16 velocities with per-frame integer weights
+    }
+
+    float lambda = 5.0f;            // smoothness weight - play around with this value
+    int mIterations = 4;            // number of Horn-Schunck iterations per frame
+    Solver mSolver = Solver.JACOBI;
+    static final float DEFAULT_RELAXATION = 1.8f;
+    float mRelaxation = DEFAULT_RELAXATION; // SOR relaxation factor omega, 0 < omega < 2
+
+    // warm start: begin the iterations from the previous frame's flow times mWarmStartDecay
+    // instead of from zero, since consecutive frames see much the same motion
+    boolean mWarmStart = false;
+    float mWarmStartDecay = 1.0f;
+    long mFrameCount;               // frames passed to compute() so far
+
+    // computeAt(): capture time of the previous frame and the interval E_t is scaled by
+    static final float DEFAULT_FRAME_RATE = 15f;    // for the first frame, which has no interval
+    boolean mHaveTimestamp;
+    long mLastTimestamp;            // System.nanoTime() clock, or any other in nanoseconds
+    double mInterval;               // seconds, 0 until known
+    float mIntervalSmoothing = 0f;  // weight of the old interval in the running average
+    float mNominalFrameRate = DEFAULT_FRAME_RATE;
+    double mRecentInterval;         // seconds, running average of the clamped intervals
+    static final double MIN_INTERVAL_RATIO = 0.25, MAX_INTERVAL_RATIO = 4;
+
+    // convergence metric: mean |change in u| + |change in v| made by each iteration
+    boolean mTrackResiduals = false;
+    float[] mResiduals = new float[0];
+    double[] mStripeResiduals = new double[0];  // per stripe partial sums, stripe-major
+
+    // Fixed point solver state, allocated the first time it runs. Velocities are Q16
+    // (value * 2^16); the weights are mWeightX / mWeightY in Q24, as they get very small
+    // where the gradient is large. Velocities saturate at +-8192 so the sum of four
+    // neighbours fits an int, weights at +-1 (more needs lambda < 0.25) and the error at
+    // +-2^38 so their product fits a long, whatever E_t is scaled to.
+    static final int FIXED_SHIFT = 16;
+    static final int WEIGHT_SHIFT = 24;
+    static final int MAX_VELOCITY_Q = (1 << 29) - 1;
+    static final int MAX_WEIGHT_Q = 1 << 24;
+    static final long MAX_ERROR_Q = 1L << 38;
+    static final long HALF_WEIGHT = 1L << (WEIGHT_SHIFT - 1);  // to round products to nearest
+    int[] uQ, vQ, uAvgQ, vAvgQ;
+    int[] mWeightXQ, mWeightYQ;
+
+    PipelineTimings mTimings;       // null when not measuring
+    PyramidHornSchunck mPyramid;    // null when solving at a single scale
+    StripeExecutor mStripes;        // null when running single threaded
+    final StripeExecutor.Task mFlowTask = new StripeExecutor.Task() {
+        public void runStripe (int stripe, int stripeCount) { computeFlowStripe(stripe, stripeCount); }
+    };
+
+    public HornSchunckEngine (int width, int height, int downscalingFactor)
+    { // constructor; width and height are the size after downscaling
+        if (width < 2 || height < 2)
+            throw new IllegalArgumentException("image too small " + width + " x " + height);
+        if (downscalingFactor < 1)
+            throw new IllegalArgumentException("bad downscaling factor " + downscalingFactor);
+        mWidth = width;
+        mHeight = height;
+        mFlowWidth = width - 1;
+        mFlowHeight = height - 1;
+        mDownscalingFactor = downscalingFactor;
+
+        setFrameHistory(2);
+        int flowSize = mFlowWidth * mFlowHeight;
+        E_x = new int[flowSize];
+        E_y = new int[flowSize];
+        E_t = new int[flowSize];
+        u = new float[flowSize];
+        v = new float[flowSize];
+        uAvg = new float[flowSize];
+        vAvg = new float[flowSize];
+        mWeightX = new float[flowSize];
+        mWeightY = new float[flowSize];
+    }
+
+    static final String VECTOR_ENGINE = "edu.mit.web.opticalbro.flow.VectorHornSchunckEngine";
+
+    // Best engine for this JVM: VectorHornSchunckEngine if it is on the classpath and
+    // jdk.incubator.vector is usable (and -Dopticalbro.vector=false isn't set), else scalar.
+    public static HornSchunckEngine create (int width, int height, int downscalingFactor)
+    {
+        if (!"false".equals(System.getProperty("opticalbro.vector"))) {
+            try {
+                Class<?> vector = Class.forName(VECTOR_ENGINE);
+                if ((Boolean) vector.getMethod("isSupported").invoke(null)) {
+                    return (HornSchunckEngine) vector.getConstructor(int.class, int.class, int.class)
+                            .newInstance(width, height, downscalingFactor);
+                }
+            } catch (Exception e) {
+                // not there (e.g. on the phone): fall through to the scalar engine
+            } catch (LinkageError e) {
+                // there, but the JVM was started without --add-modules jdk.incubator.vector
+            }
+        }
+        return new HornSchunckEngine(width, height, downscalingFactor);
+    }
+
+    // Run one frame through the pipeline: take the Y plane (the first stride * rows bytes of
+    // a YUV420SP / NV21 preview frame), compute the brightness gradients against the previous
+    // frame and iterate Horn-Schunck. fps scales E_t to [greyscale_value per second].
+    public void compute (byte[] yPlane, int stride, float fps)
+    {
+        compute(yPlane, 0, stride, fps);
+    }
+
+    // the same for the part of the frame whose top left camera pixel is yPlane[offset]
+    // (see RegionFlow)
+    public void compute (byte[] yPlane, int offset, int stride, float fps)
+    {
+        checkWindow(offset, stride, yPlane.length);
+        long start = (mTimings != null) ? System.nanoTime() : 0;
+        decode(yPlane, offset, stride);
+        if (mTimings != null) mTimings.record(PipelineTimings.Stage.DECODE, System.nanoTime() - start);
+        computeFrame(fps);
+    }
+
+    // the same for a Y plane in a ByteBuffer (e.g. a memory-mapped recording), read from
+    // index 0 without copying; the buffer's position is left alone
+    public void compute (ByteBuffer yPlane, int stride, float fps)
+    {
+        compute(yPlane, 0, stride, fps);
+    }
+
+    public void compute (ByteBuffer yPlane, int offset, int stride, float fps)
+    {
+        checkWindow(offset, stride, yPlane.limit());
+        long start = (mTimings != null) ? System.nanoTime() : 0;
+        decode(yPlane, offset, stride);
+        if (mTimings != null) mTimings.record(PipelineTimings.Stage.DECODE, System.nanoTime() - start);
+        computeFrame(fps);
+    }
+
+    // Run a frame captured at timestampNanos (e.g. System.nanoTime() in onPreviewFrame):
+    // E_t is scaled by the time since the previous frame given here, so camera jitter,
+    // processing load and dropped frames don't change the flow's magnitude
+    public void computeAt (byte[] yPlane, int stride, long timestampNanos)
+    {
+        compute(yPlane, 0, stride, frameRateAt(timestampNanos));
+    }
+
+    public void computeAt (ByteBuffer yPlane, int stride, long timestampNanos)
+    {
+        compute(yPlane, 0, stride, frameRateAt(timestampNanos));
+    }
+
+    float frameRateAt (long timestamp)
+    { // 1 / the (smoothed) interval; a timestamp that doesn't move forward keeps the last one.
+      // Frames delivered back to back after a stall (dt ~ 0) would scale E_t without bound,
+      // so the interval is clamped to 1/4 .. 4 times a reference: the nominal period, or
+      // the recent interval if longer, so a device that only keeps up with a few frames a
+      // second is scaled by the intervals it really has.
+        if (mHaveTimestamp && timestamp - mLastTimestamp > 0) {
+            double reference = Math.max(1.0 / mNominalFrameRate, mRecentInterval);
+            double dt = Math.max(MIN_INTERVAL_RATIO * reference,
+                    Math.min(MAX_INTERVAL_RATIO * reference, (timestamp - mLastTimestamp) * 1e-9));
+            mRecentInterval = (mRecentInterval > 0) ? 0.5 * (mRecentInterval + dt) : dt;
+            if (mInterval > 0) dt = mIntervalSmoothing * mInterval + (1 - mIntervalSmoothing) * dt;
+            mInterval = dt;
+        }
+        mHaveTimestamp = true;
+        mLastTimestamp = timestamp;
+        return getFrameRate();
+    }
+
+    // frame rate computeAt() used for the last frame
+    public float getFrameRate ()
+    {
+        return (mInterval > 0) ? (float) (1 / mInterval) : DEFAULT_FRAME_RATE;
+    }
+
+    public float getIntervalSmoothing () { return mIntervalSmoothing; }
+
+    public float getNominalFrameRate () { return mNominalFrameRate; }
+
+    // frame rate the camera was asked for; computeAt() keeps the intervals it measures
+    // between 1/4 and 4 times its period, or the recent interval when that is longer
+    public void setNominalFrameRate (float fps)
+    {
+        if (!(fps > 0)) throw new IllegalArgumentException("bad frame rate " + fps);
+        mNominalFrameRate = fps;
+    }
+
+    // 0 (the default) scales each frame pair by its own interval; s in (0, 1) uses a running
+    // average, interval = s * interval + (1 - s) * dt, which evens out timestamp jitter but
+    // lags behind real changes such as a dropped frame
+    public void setIntervalSmoothing (float smoothing)
+    {
+        if (!(smoothing >= 0 && smoothing < 1))
+            throw new IllegalArgumentException("interval smoothing " + smoothing + " not in [0, 1)");
+        mIntervalSmoothing = smoothing;
+    }
+
+    void checkWindow (int offset, int stride, int length)
+    {
+        if (offset < 0 || stride - offset % stride < mWidth * mDownscalingFactor)
+            throw new IllegalArgumentException("stride " + stride + " too small for width " + mWidth
+                    + " at offset " + offset);
+        if (offset + ((long) mHeight * mDownscalingFactor - 1) * stride + mWidth * mDownscalingFactor > length)
+            throw new IllegalArgumentException("frame of " + length + " bytes too small for "
+                    + mHeight + " rows of stride " + stride);
+    }
+
+    void computeFrame (float fps)
+    { // everything after decoding the new frame into mGrayscaleData
+        final PipelineTimings timings = mTimings;
+        mFrameCount++;
+        long start = (timings != null) ? System.nanoTime() : 0;
+        // until the ring holds a whole stencil's frames, fall back to the last two
+        if (mStencil == TemporalStencil.TWO_FRAME || mFrameCount < mStencil.getFrames()) computeGradients(fps);
+        else computeGradientsCentred(fps);
+        mWeightsValid = false;
+        if (timings != null) {
+            long now = System.nanoTime();
+            timings.record(PipelineTimings.Stage.GRADIENTS, now - start);
+            start = now;
+        }
+        if (mPyramid != null) {
+            mPyramid.setLambda(lambda);
+            mPyramid.compute(mPrevGrayscaleData, mGrayscaleData, fps, u, v);
+        }
+        else computeFlow();
+        if (timings != null) timings.record(PipelineTimings.Stage.SOLVE, System.nanoTime() - start);
+        // the current frame becomes the previous one for next time, without copying
+        mFrames.commit();
+        mGrayscaleData = mFrames.next();
+        mPrevGrayscaleData = mFrames.get(0);
+    }
+
+    void decode (byte[] yPlane, int offset, int stride)
+    { // the downscaled frame into mGrayscaleData
+        if (mDownsampling == Downsampling.BOX && mDownscalingFactor > 1) decodeBox(yPlane, offset, stride);
+        else decodeGrayscale(yPlane, offset, stride);
+    }
+
+    void decode (ByteBuffer yPlane, int offset, int stride)
+    {
+        if (mDownsampling == Downsampling.BOX && mDownscalingFactor > 1) decodeBox(yPlane, offset, stride);
+        else decodeGrayscale(yPlane, offset, stride);
+    }
+
+    void decodeGrayscale (byte[] yPlane, int offset, int stride)
+    { // sample every mDownscalingFactor-th Y byte of every mDownscalingFactor-th row
+        final int step = mDownscalingFactor;
+        for (int j = 0, out = 0; j < mHeight; j++) {
+            int pix = offset + j * step * stride;
+            for (int i = 0; i < mWidth; i++, out++, pix += step) {
+                mGrayscaleData[out] = (0xFF & ((int) yPlane[pix])); // this is y
+            }
+        }
+    }
+
+    void decodeGrayscale (ByteBuffer yPlane, int offset, int stride)
+    {
+        final int step = mDownscalingFactor;
+        for (int j = 0, out = 0; j < mHeight; j++) {
+            int pix = offset + j * step * stride;
+            for (int i = 0; i < mWidth; i++, out++, pix += step) {
+                mGrayscaleData[out] = 0xFF & yPlane.get(pix);
+            }
+        }
+    }
+
+    void decodeBox (byte[] yPlane, int offset, int stride)
+    { // rounded mean of each step x step block. The step source rows of an output row are
+      // read once each, front to back, adding up columns into mColumnSums; then runs of
+      // step column sums give the block sums. The division by the block area is a
+      // multiplication by a 32 bit reciprocal, exact for every possible sum.
+        final int step = mDownscalingFactor, columns = mWidth * step, half = step * step / 2;
+        final long reciprocal = reciprocal(step * step);
+        final int[] sums = columnSums();
+        for (int j = 0, out = 0; j < mHeight; j++) {
+            int row = offset + j * step * stride;
+            for (int x = 0; x < columns; x++) sums[x] = 0xFF & yPlane[row + x];
+            for (int r = 1; r < step; r++) {
+                row += stride;
+                for (int x = 0; x < columns; x++) sums[x] += 0xFF & yPlane[row + x];
+            }
+            for (int i = 0, x = 0; i < mWidth; i++, out++) {
+                int sum = half;
+                for (int k = 0; k < step; k++, x++) sum += sums[x];
+                mGrayscaleData[out] = (int) ((sum * reciprocal) >>> 32);
+            }
+        }
+    }
+
+    void decodeBox (ByteBuffer yPlane, int offset, int stride)
+    {
+        final int step = mDownscalingFactor, columns = mWidth * step, half = step * step / 2;
+        final long reciprocal = reciprocal(step * step);
+        final int[] sums = columnSums();
+        for (int j = 0, out = 0; j < mHeight; j++) {
+            int row = offset + j * step * stride;
+            for (int x = 0; x < columns; x++) sums[x] = 0xFF & yPlane.get(row + x);
+            for (int r = 1; r < step; r++) {
+                row += stride;
+                for (int x = 0; x < columns; x++) sums[x] += 0xFF & yPlane.get(row + x);
+            }
+            for (int i = 0, x = 0; i < mWidth; i++, out++) {
+                int sum = half;
+                for (int k = 0; k < step; k++, x++) sum += sums[x];
+                mGrayscaleData[out] = (int) ((sum * reciprocal) >>> 32);
+            }
+        }
+    }
+
+    // ceil(2^32 / divisor): (n * reciprocal) >>> 32 == n / divisor for n < 2^32 / divisor
+    static long reciprocal (int divisor)
+    {
+        return ((1L << 32) + divisor - 1) / divisor;
+    }
+
+    int[] columnSums ()
+    {
+        if (mColumnSums == null) mColumnSums = new int[mWidth * mDownscalingFactor];
+        return mColumnSums;
+    }
+
+    void computeGradients (float fps)
+    { // brightness gradient in X, Y, and time, averaged over a 2x2x2 cube
+      // Fused single pass: each 2x2x2 cube shares its left column pair with the cube
+      // to its left, so per column we form three sums once and slide them along the row:
+      //   s = prev + cur summed over both rows   -> E_x = (s[i+1] - s[i]) >> 2
+      //   r = (prev + cur) lower row - upper row -> E_y = (r[i] + r[i+1]) >> 2
+      //   d = cur - prev summed over both rows   -> E_t = fps * ((d[i] + d[i+1]) >> 2)
+      // which gives exactly the same integers as adding up all 8 corners per output.
+        final int w = mWidth, fw = mFlowWidth;
+        final int[] cur = mGrayscaleData;
+        final int[] prev = mPrevGrayscaleData;
+        final int[] ex = E_x, ey = E_y, et = E_t;
+        for (int j = 0; j < mFlowHeight; j++) {
+            int a0 = j * w;         // upper row, column i
+            int a1 = a0 + w;        // lower row, column i
+            int k = j * fw;
+            int top = prev[a0] + cur[a0], bottom = prev[a1] + cur[a1];
+            int sLeft = top + bottom;
+            int rLeft = bottom - top;
+            int dLeft = cur[a0] + cur[a1] - prev[a0] - prev[a1];
+            for (int end = k + fw; k < end; k++) {
+                a0++;
+                a1++;
+                int c0 = cur[a0], c1 = cur[a1];
+                int p0 = prev[a0], p1 = prev[a1];
+                top = p0 + c0;
+                bottom = p1 + c1;
+                int sRight = top + bottom;
+                int rRight = bottom - top;
+                int dRight = c0 + c1 - p0 - p1;
+                // units are [greyscale_value per pixel]
+                ex[k] = (sRight - sLeft) >> 2;
+                ey[k] = (rLeft + rRight) >> 2;
+                // units are [greyscale_value per second]
+                et[k] = (int) (fps * ((dLeft + dRight) >> 2));
+                sLeft = sRight;
+                rLeft = rRight;
+                dLeft = dRight;
+            }
+        }
+    }
+
+    void computeGradientsCentred (float fps)
+    { // spatial gradients of the centre frame over each 2x2 cell, E_t from a centred
+      // difference of the 2x2 cell sums through time. Units are the same as the cube's:
+      // E_x = (right column - left column) / 2, E_t = fps * (cell sum difference) / 4 / 2 or 12.
+        final int w = mWidth, fw = mFlowWidth;
+        final boolean five = (mStencil == TemporalStencil.FIVE_FRAME);
+        final int[] f0 = mGrayscaleData, f1 = mFrames.get(0), f2 = mFrames.get(1);
+        final int[] f3 = five ? mFrames.get(2) : null, f4 = five ? mFrames.get(3) : null;
+        final int[] centre = five ? f2 : f1;
+        final float scale = fps / (five ? 48 : 8);
+        final int[] ex = E_x, ey = E_y, et = E_t;
+        for (int j = 0; j < mFlowHeight; j++) {
+            int a0 = j * w, a1 = a0 + w;
+            for (int k = j * fw, end = k + fw; k < end; k++, a0++, a1++) {
+                int c00 = centre[a0], c01 = centre[a0 + 1], c10 = centre[a1], c11 = centre[a1 + 1];
+                ex[k] = (c01 + c11 - c00 - c10) >> 1;
+                ey[k] = (c10 + c11 - c00 - c01) >> 1;
+                int d;
+                if (five) {
+                    d = -(f0[a0] + f0[a0 + 1] + f0[a1] + f0[a1 + 1])
+                            + 8 * (f1[a0] + f1[a0 + 1] + f1[a1] + f1[a1 + 1])
+                            - 8 * (f3[a0] + f3[a0 + 1] + f3[a1] + f3[a1 + 1])
+                            + (f4[a0] + f4[a0 + 1] + f4[a1] + f4[a1 + 1]);
+                }
+                else {
+                    d = f0[a0] + f0[a0 + 1] + f0[a1] + f0[a1 + 1]
+                            - f2[a0] - f2[a0 + 1] - f2[a1] - f2[a1 + 1];
+                }
+                et[k] = (int) (scale * d);
+            }
+        }
+    }
+
+    void computeFlow ()
+    { // iterative Horn-Schunck, starting from zero flow everywhere (or from the last result)
+        // the first frame is compared against an empty previous frame, so its flow is
+        // no use as a starting point: warm start from the third frame on, and not before
+        // the temporal stencil has the frames it needs
+        if (mWarmStart && mFrameCount > 2 && mFrameCount >= mStencil.getFrames()) {
+            if (mWarmStartDecay != 1.0f) {
+                for (int k = 0; k < u.length; k++) {
+                    u[k] *= mWarmStartDecay;
+                    v[k] *= mWarmStartDecay;
+                }
+            }
+        }
+        else {
+            Arrays.fill(u, 0f);
+            Arrays.fill(v, 0f);
+        }
+        if (mTrackResiduals && mResiduals.length < mIterations)
+            mResiduals = new float[mIterations];   // only when the iteration count goes up
+
+        final boolean fixed = (mSolver == Solver.FIXED_POINT);
+        if (fixed && uQ == null) {
+            int flowSize = mFlowWidth * mFlowHeight;
+            uQ = new int[flowSize];
+            vQ = new int[flowSize];
+            uAvgQ = new int[flowSize];
+            vAvgQ = new int[flowSize];
+            mWeightXQ = new int[flowSize];
+            mWeightYQ = new int[flowSize];
+        }
+
+        final float n = mFlowWidth * mFlowHeight;
+        mUpdateWeights = !mWeightsValid;
+        mWeightsValid = true;
+        if (mStripes != null) {
+            int stripes = mStripes.getThreadCount();
+            if (mTrackResiduals && mStripeResiduals.length < stripes * mIterations)
+                mStripeResiduals = new double[stripes * mIterations];
+            mStripes.run(mFlowTask);
+            if (mTrackResiduals) {
+                for (int iterations = 0; iterations < mIterations; iterations++) {
+                    double sum = 0;
+                    for (int stripe = 0; stripe < stripes; stripe++)
+                        sum += mStripeResiduals[stripe * mIterations + iterations];
+                    mResiduals[iterations] = (float) (sum / n);
+                }
+            }
+            return;
+        }
+        final boolean sor = (mSolver == Solver.RED_BLACK_SOR);
+        final PipelineTimings timings = mTimings;
+        if (mUpdateWeights) weightRows(0, mFlowHeight);
+        if (fixed) toFixedRows(0, mFlowHeight);
+        for (int iterations = 0; iterations < mIterations; iterations++) {
+            long start = (timings != null) ? System.nanoTime() : 0;
+            double change;
+            if (sor) {
+                change = relaxRows(0, mFlowHeight, 0);
+                change += relaxRows(0, mFlowHeight, 1);
+            }
+            else if (fixed) {
+                averageRowsFixed(0, mFlowHeight);
+                change = updateRowsFixed(0, mFlowHeight);
+            }
+            else {
+                averageRows(0, mFlowHeight);
+                change = updateRows(0, mFlowHeight);
+            }
+            if (mTrackResiduals) mResiduals[iterations] = (float) (change / n);
+            if (timings != null) timings.record(PipelineTimings.Stage.ITERATION, System.nanoTime() - start);
+        }
+        if (fixed) fromFixedRows(0, mFlowHeight);
+    }
+
+    void computeFlowStripe (int stripe, int stripeCount)
+    { // the same iterations restricted to one stripe of rows; the averages read the rows
+      // next to the stripe, so all stripes must finish a pass before the next one starts
+      // (Jacobi: averages, then updates; SOR: red cells, then black cells)
+        int j0 = StripeExecutor.stripeStart(stripe, stripeCount, mFlowHeight);
+        int j1 = StripeExecutor.stripeStart(stripe + 1, stripeCount, mFlowHeight);
+        final boolean sor = (mSolver == Solver.RED_BLACK_SOR);
+        final boolean fixed = (mSolver == Solver.FIXED_POINT);
+        // stripe 0 times the iterations, barrier to barrier, i.e. until every stripe is done;
+        // when timing, every stripe also waits at a barrier after the last iteration so it is
+        // measured the same way
+        final boolean timed = (mTimings != null);
+        final PipelineTimings timings = (stripe == 0) ? mTimings : null;
+        if (mUpdateWeights) weightRows(j0, j1);
+        if (fixed) {
+            toFixedRows(j0, j1);
+            mStripes.barrier();
+        }
+        long start = (timings != null) ? System.nanoTime() : 0;
+        for (int iterations = 0; iterations < mIterations; iterations++) {
+            double change = 0;
+            if (sor) change = relaxRows(j0, j1, 0);
+            else if (fixed) averageRowsFixed(j0, j1);
+            else averageRows(j0, j1);
+            mStripes.barrier();
+            if (sor) change += relaxRows(j0, j1, 1);
+            else if (fixed) change = updateRowsFixed(j0, j1);
+            else change = updateRows(j0, j1);
+            if (mTrackResiduals) mStripeResiduals[stripe * mIterations + iterations] = change;
+            if (iterations < mIterations - 1 || timed) mStripes.barrier();
+            if (timings != null) {
+                long now = System.nanoTime();
+                timings.record(PipelineTimings.Stage.ITERATION, now - start);
+                start = now;
+            }
+        }
+        if (fixed) fromFixedRows(j0, j1);
+    }
+
+    void averageRows (int j0, int j1)
+    { // first, calculate the averages
+        neighborAverages(u, uAvg, mFlowWidth, mFlowHeight, j0, j1);
+        neighborAverages(v, vAvg, mFlowWidth, mFlowHeight, j0, j1);
+    }
+
+    double updateRows (int j0, int j1)
+    { // then, calculate the new estimate for the velocities
+      // returns the summed |change| of u and v when tracking residuals, else 0
+        final boolean track = mTrackResiduals;
+        double change = 0;
+        for (int k = j0 * mFlowWidth, end = j1 * mFlowWidth; k < end; k++) {
+            float error = E_x[k] * uAvg[k] + E_y[k] * vAvg[k] + E_t[k];
+            float newU = uAvg[k] - mWeightX[k] * error;
+            float newV = vAvg[k] - mWeightY[k] * error;
+            if (track) change += Math.abs(newU - u[k]) + Math.abs(newV - v[k]);
+            u[k] = newU;
+            v[k] = newV;
+        }
+        return change;
+    }
+
+    void weightRows (int j0, int j1)
+    { // the gradient dependent part of the update, see mWeightX
+        final float lambda = this.lambda;
+        for (int k = j0 * mFlowWidth, end = j1 * mFlowWidth; k < end; k++) {
+            int ex = E_x[k], ey = E_y[k];
+            float reciprocal = 1 / (1 + lambda * ((float) (ex * ex) + (float) (ey * ey)));
+            mWeightX[k] = ex * reciprocal;
+            mWeightY[k] = ey * reciprocal;
+        }
+    }
+
+    void toFixedRows (int j0, int j1)
+    { // once per run: starting velocities and update weights for the fixed point solver
+        final float one = 1 << FIXED_SHIFT, weightOne = 1 << WEIGHT_SHIFT;
+        for (int k = j0 * mFlowWidth, end = j1 * mFlowWidth; k < end; k++) {
+            uQ[k] = clamp(Math.round(u[k] * one), MAX_VELOCITY_Q);
+            vQ[k] = clamp(Math.round(v[k] * one), MAX_VELOCITY_Q);
+            mWeightXQ[k] = clamp(Math.round(mWeightX[k] * weightOne), MAX_WEIGHT_Q);
+            mWeightYQ[k] = clamp(Math.round(mWeightY[k] * weightOne), MAX_WEIGHT_Q);
+        }
+    }
+
+    void fromFixedRows (int j0, int j1)
+    {
+        final float scale = 1f / (1 << FIXED_SHIFT);
+        for (int k = j0 * mFlowWidth, end = j1 * mFlowWidth; k < end; k++) {
+            u[k] = uQ[k] * scale;
+            v[k] = vQ[k] * scale;
+        }
+    }
+
+    void averageRowsFixed (int j0, int j1)
+    {
+        neighborAverages(uQ, uAvgQ, mFlowWidth, mFlowHeight, j0, j1);
+        neighborAverages(vQ, vAvgQ, mFlowWidth, mFlowHeight, j0, j1);
+    }
+
+    double updateRowsFixed (int j0, int j1)
+    { // updateRows() in integers: u = uAvg - weightX * (E_x * uAvg + E_y * vAvg + E_t)
+      // The bracket is Q16 and is clamped to 2^38, times a Q24 weight of at most 2^24 stays
+      // below 2^62; products round to nearest and the new velocities saturate.
+        long change = 0;
+        for (int k = j0 * mFlowWidth, end = j1 * mFlowWidth; k < end; k++) {
+            int ua = uAvgQ[k], va = vAvgQ[k];
+            long error = (long) E_x[k] * ua + (long) E_y[k] * va + ((long) E_t[k] << FIXED_SHIFT);
+            if (error > MAX_ERROR_Q) error = MAX_ERROR_Q;
+            else if (error < -MAX_ERROR_Q) error = -MAX_ERROR_Q;
+            int newU = clamp(ua - ((error * mWeightXQ[k] + HALF_WEIGHT) >> WEIGHT_SHIFT), MAX_VELOCITY_Q);
+            int newV = clamp(va - ((error * mWeightYQ[k] + HALF_WEIGHT) >> WEIGHT_SHIFT), MAX_VELOCITY_Q);
+            change += Math.abs(newU - uQ[k]) + Math.abs(newV - vQ[k]);
+            uQ[k] = newU;
+            vQ[k] = newV;
+        }
+        return change * (1.0 / (1 << FIXED_SHIFT));
+    }
+
+    static int clamp (long value, int limit)
+    {
+        return (int) Math.max(-limit, Math.min(limit, value));
+    }
+
+    // One SOR half sweep: update the cells of one colour of the checkerboard ((i + j) % 2 ==
+    // color) in place. Their neighbours all have the other colour, so the cells of a colour
+    // can be done in any order, or in parallel. Returns the summed |change| of u and v.
+    // As in neighborAverages(), interior cells average their 4 neighbours with no checks
+    // and only the first / last row and column go through neighborAverage().
+    double relaxRows (int j0, int j1, int color)
+    {
+        final int w = mFlowWidth, h = mFlowHeight;
+        double change = 0;
+        for (int j = j0; j < j1; j++) {
+            int first = (j + color) & 1;
+            if (j == 0 || j == h - 1 || w < 3) {
+                for (int i = first; i < w; i += 2) change += relaxCell(i, j);
+                continue;
+            }
+            if (first == 0) change += relaxCell(0, j);
+            final float omega = mRelaxation;
+            int i = (first == 0) ? 2 : 1;
+            for (int k = j * w + i; i < w - 1; i += 2, k += 2) {
+                float ua = (u[k - 1] + u[k - w] + u[k + 1] + u[k + w]) * 0.25f;
+                float va = (v[k - 1] + v[k - w] + v[k + 1] + v[k + w]) * 0.25f;
+                float error = E_x[k] * ua + E_y[k] * va + E_t[k];
+                // over-relax towards the Gauss-Seidel value
+                float du = omega * (ua - mWeightX[k] * error - u[k]);
+                float dv = omega * (va - mWeightY[k] * error - v[k]);
+                u[k] += du;
+                v[k] += dv;
+                change += Math.abs(du) + Math.abs(dv);
+            }
+            if (i == w - 1) change += relaxCell(w - 1, j);
+        }
+        return change;
+    }
+
+    // relaxRows() for one cell on the border of the grid
+    float relaxCell (int i, int j)
+    {
+        final int k = j * mFlowWidth + i;
+        final float omega = mRelaxation;
+        float ua = neighborAverage(u, i, j, mFlowWidth, mFlowHeight);
+        float va = neighborAverage(v, i, j, mFlowWidth, mFlowHeight);
+        float error = E_x[k] * ua + E_y[k] * va + E_t[k];
+        float du = omega * (ua - mWeightX[k] * error - u[k]);
+        float dv = omega * (va - mWeightY[k] * error - v[k]);
+        u[k] += du;
+        v[k] += dv;
+        return Math.abs(du) + Math.abs(dv);
+    }
+
+    // average of the (up to 4) neighbours that exist, summed in float
+    static float neighborAverage (float[] array, int i, int j, int width, int height)
+    {
+        int k = j * width + i;
+        int count = 0;
+        float sum = 0;
+        if (i > 0) { sum += array[k - 1]; count++; }
+        if (j > 0) { sum += array[k - width]; count++; }
+        if (i < width - 1) { sum += array[k + 1]; count++; }
+        if (j < height - 1) { sum += array[k + width]; count++; }
+        return sum / count;
+    }
+
+    // Average of the pixels above, below, left and right for rows j0..j1-1 of a width x height
+    // grid. Interior cells all have 4 neighbours, so they get a plain stencil times 0.25
+    // with no checks; only the first / last row and column go through neighborAverage().
+    // Same summation order as neighborAverage(), so the results are identical.
+    static void neighborAverages (float[] array, float[] average, int width, int height, int j0, int j1)
+    {
+        for (int j = j0; j < j1; j++) {
+            int row = j * width;
+            if (j == 0 || j == height - 1 || width < 3) {
+                for (int i = 0; i < width; i++)
+                    average[row + i] = neighborAverage(array, i, j, width, height);
+                continue;
+            }
+            average[row] = neighborAverage(array, 0, j, width, height);
+            for (int k = row + 1, end = row + width - 1; k < end; k++)
+                average[k] = (array[k - 1] + array[k - width] + array[k + 1] + array[k + width]) * 0.25f;
+            average[row + width - 1] = neighborAverage(array, width - 1, j, width, height);
+        }
+    }
+
+    // Integer versions of the two above for the fixed point solver. Both round to nearest,
+    // halves up: (sum + count / 2) divided by count, rounded down, which for 4 neighbours
+    // is the interior's (sum + 2) >> 2. Plain '/' would round negative edge cells up.
+    static int neighborAverage (int[] array, int i, int j, int width, int height)
+    {
+        int k = j * width + i;
+        int count = 0;
+        int sum = 0;
+        if (i > 0) { sum += array[k - 1]; count++; }
+        if (j > 0) { sum += array[k - width]; count++; }
+        if (i < width - 1) { sum += array[k + 1]; count++; }
+        if (j < height - 1) { sum += array[k + width]; count++; }
+        sum += count >> 1;
+        int average = sum / count;
+        return (sum % count < 0) ? average - 1 : average;
+    }
+
+    static void neighborAverages (int[] array, int[] average, int width, int height, int j0, int j1)
+    {
+        for (int j = j0; j < j1; j++) {
+            int row = j * width;
+            if (j == 0 || j == height - 1 || width < 3) {
+                for (int i = 0; i < width; i++)
+                    average[row + i] = neighborAverage(array, i, j, width, height);
+                continue;
+            }
+            average[row] = neighborAverage(array, 0, j, width, height);
+            for (int k = row + 1, end = row + width - 1; k < end; k++)
+                average[k] = (array[k - 1] + array[k - width] + array[k + 1] + array[k + width] + 2) >> 2;
+            average[row + width - 1] = neighborAverage(array, width - 1, j, width, height);
+        }
+    }
+
+    public int getWidth () { return mWidth; }
+    public int getHeight () { return mHeight; }
+    public int getFlowWidth () { return mFlowWidth; }
+    public int getFlowHeight () { return mFlowHeight; }
+    public int getDownscalingFactor () { return mDownscalingFactor; }
+
+    // flow fields, mFlowHeight rows of mFlowWidth; owned by the engine, overwritten by compute()
+    public float[] getU () { return u; }
+    public float[] getV () { return v; }
+    public int[] getEx () { return E_x; }
+    public int[] getEy () { return E_y; }
+    public int[] getEt () { return E_t; }
+
+    public float getLambda () { return lambda; }
+    public void setLambda (float lambda)
+    {
+        if (lambda != this.lambda) mWeightsValid = false;
+        this.lambda = lambda;
+    }
+    public int getIterations () { return mIterations; }
+    public void setIterations (int iterations) { mIterations = iterations; }
+
+    public boolean getWarmStart () { return mWarmStart; }
+    public float getWarmStartDecay () { return mWarmStartDecay; }
+
+    // Start each frame's iterations from the previous frame's flow multiplied by decay
+    // (0..1) rather than from zero. Single scale solver only; the pyramid starts from zero.
+    public void setWarmStart (boolean enabled, float decay)
+    {
+        if (decay < 0 || decay > 1)
+            throw new IllegalArgumentException("bad warm start decay " + decay);
+        mWarmStart = enabled;
+        mWarmStartDecay = decay;
+    }
+
+    // Record the mean absolute change of (u, v) made by each iteration of the single scale
+    // solver, in the units of u and v. Costs an extra subtract and add per pixel.
+    public void setTrackResiduals (boolean track) { mTrackResiduals = track; }
+    public boolean getTrackResiduals () { return mTrackResiduals; }
+
+    // residuals of the last frame, one per iteration (only the first getIterations() are
+    // valid); overwritten by compute()
+    public float[] getResiduals () { return mResiduals; }
+
+    public int getPyramidLevels () { return (mPyramid == null) ? 1 : mPyramid.getLevels(); }
+
+    // Solve coarse-to-fine over up to this many pyramid levels, with iterationsPerLevel
+    // Horn-Schunck iterations on each; levels = 1 goes back to the single scale solver,
+    // which uses getIterations() iterations. Allocates the pyramid, so call it up front.
+    public void setPyramid (int levels, int iterationsPerLevel)
+    {
+        if (levels < 1)
+            throw new IllegalArgumentException("bad number of levels " + levels);
+        if (levels == 1) {
+            mPyramid = null;
+            return;
+        }
+        // compared after clamping, or a level count too deep for the grid would rebuild it
+        // on every call
+        if (mPyramid == null || mPyramid.mLevels != PyramidHornSchunck.levelCount(mWidth, mHeight, levels))
+            mPyramid = new PyramidHornSchunck(mWidth, mHeight, levels);
+        mPyramid.setIterations(iterationsPerLevel);
+    }
+
+    // Keep the last 'frames' grayscale frames (at least as many as the temporal stencil uses);
+    // the history starts over empty.
+    public void setFrameHistory (int frames)
+    {
+        if (frames < mStencil.getFrames())
+            throw new IllegalArgumentException(frames + " frames too few for " + mStencil);
+        mFrames = new FrameRing(frames, mWidth * mHeight);
+        mGrayscaleData = mFrames.next();
+        mPrevGrayscaleData = mFrames.get(0);
+    }
+
+    public int getFrameHistory () { return mFrames.size(); }
+
+    // grayscale frame from 'age' frames ago, 0 = the last one passed to compute(),
+    // up to getFrameHistory() - 1; all zero before there were that many frames
+    public int[] getFrame (int age) { return mFrames.get(age); }
+
+    public TemporalStencil getTemporalStencil () { return mStencil; }
+
+    // E_t stencil for single scale solves (the pyramid always compares the last two frames);
+    // grows the frame history to the stencil's frames if needed, which starts it over
+    public void setTemporalStencil (TemporalStencil stencil)
+    {
+        mStencil = stencil;
+        if (mFrames.size() < stencil.getFrames()) setFrameHistory(stencil.getFrames());
+    }
+
+    public PipelineTimings getTimings () { return mTimings; }
+    public void setTimings (PipelineTimings timings) { mTimings = timings; }
+
+    public Downsampling getDownsampling () { return mDownsampling; }
+    public void setDownsampling (Downsampling downsampling) { mDownsampling = downsampling; }
+
+    public Solver getSolver () { return mSolver; }
+    public void setSolver (Solver solver) { mSolver = solver; }
+    public float getRelaxation () { return mRelaxation; }
+
+    // SOR relaxation factor: 1 is plain Gauss-Seidel, up to 2 over-relaxes
+    public void setRelaxation (float omega)
+    {
+        if (omega <= 0 || omega >= 2)
+            throw new IllegalArgumentException("relaxation factor must be in (0, 2): " + omega);
+        mRelaxation = omega;
+    }
+
+    public int getThreadCount () { return (mStripes == null) ? 1 : mStripes.getThreadCount(); }
+
+    // Split the iterations over this many threads (1 = run on the calling thread only).
+    // Must not be called while compute() is running.
+    public void setThreadCount (int threads)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("bad thread count " + threads);
+        if (threads == getThreadCount()) return;
+        shutdown();
+        if (threads > 1) mStripes = new StripeExecutor(threads);
+    }
+
+    // stop any worker threads; the engine keeps working single threaded afterwards
+    public void shutdown ()
+    {
+        if (mStripes != null) {
+            mStripes.shutdown();
+            mStripes = null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+// Histogram of durations in nanoseconds with log-linear buckets, as in HdrHistogram: values
+// below 2^SUB_BITS get a bucket each, and every power of two above that is split into
+// 2^SUB_BITS equal buckets, so any recorded value is known to within 1 / 2^SUB_BITS (~3%)
+// from 1 ns up to MAX_VALUE (~36 minutes; longer values are clamped). record() is
+// allocation free and meant for a single writing thread; other threads can read a
+// consistent enough copy with copyTo() at any time.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram
+{
+    static final int SUB_BITS = 5;
+    static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int MAX_EXPONENT = 40;
+    public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    // bucket counts, then the total count, the sum and the maximum
+    static final int COUNT = BUCKETS, SUM = BUCKETS + 1, MAX = BUCKETS + 2;
+    final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS + 3);
+
+    static int bucket (long value)
+    {
+        if (value < SUB_COUNT) return (int) Math.max(0, value);
+        if (value > MAX_VALUE) value = MAX_VALUE;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // smallest value that goes in the bucket
+    static long lowest (int bucket)
+    {
+        if (bucket < SUB_COUNT) return bucket;
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        return ((long) (SUB_COUNT + bucket % SUB_COUNT)) << (exponent - SUB_BITS);
+    }
+
+    // values in the bucket are lowest(bucket) .. lowest(bucket) + width(bucket) - 1
+    static long width (int bucket)
+    {
+        if (bucket < 2 * SUB_COUNT) return 1;
+        return 1L << (bucket / SUB_COUNT - 1);
+    }
+
+    public void record (long nanos)
+    { // single writer: plain read-modify-write, published with ordered stores
+        int b = bucket(nanos);
+        mCounts.lazySet(b, mCounts.get(b) + 1);
+        mCounts.lazySet(SUM, mCounts.get(SUM) + nanos);
+        if (nanos > mCounts.get(MAX)) mCounts.lazySet(MAX, nanos);
+        mCounts.lazySet(COUNT, mCounts.get(COUNT) + 1);
+    }
+
+    public long getCount () { return mCounts.get(COUNT); }
+    public long getMax () { return mCounts.get(MAX); }
+
+    public double getMean ()
+    {
+        long count = getCount();
+        return (count == 0) ? 0 : (double) mCounts.get(SUM) / count;
+    }
+
+    // Value at or below which the given percentage (0..100) of the recorded values lie, to
+    // within the bucket resolution (the middle of the bucket is returned); 0 if empty.
+    public long getValueAtPercentile (double percentile)
+    {
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) total += mCounts.get(b);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += mCounts.get(b);
+            if (seen >= rank) return Math.min(getMax(), lowest(b) + width(b) / 2);
+        }
+        return getMax();
+    }
+
+    // Copy the current counts into another histogram, e.g. one kept by a reader thread to
+    // take percentiles from without the writer changing it meanwhile.
+    public void copyTo (LatencyHistogram target)
+    {
+        for (int b = 0; b < mCounts.length(); b++) target.mCounts.lazySet(b, mCounts.get(b));
+    }
+
+    // not to be called while the writer is recording
+    public void reset ()
+    {
+        for (int b = 0; b < mCounts.length(); b++) mCounts.set(b, 0);
+    }
+}
@@ -0,0 +1,77 @@
+// Reusable barrier for a fixed number of threads that allocates nothing per trip, for
+// StripeExecutor. CyclicBarrier makes a new Generation on every trip and queues its waiters
+// on a lock / condition, which allocates nodes too, and a striped frame crosses several
+// barriers. Here arrivals count up on an atomic: the last one to arrive resets the count,
+// moves the phase on and unparks the others, which spin for a little while first (on more
+// than one core) in case the rest are nearly there.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+final class PhaseBarrier
+{
+    static final int SPINS = (Runtime.getRuntime().availableProcessors() > 1) ? 1 << 10 : 0;
+
+    final int mParties;
+    final AtomicInteger mArrived = new AtomicInteger();
+    volatile int mPhase;
+    volatile boolean mBroken;
+    // The thread that arrived n-th on a trip, for the last one to unpark, in one set of
+    // slots for even and one for odd phases: threads let out of a trip can arrive at the
+    // next one before the last has read the slots, and must not overwrite them. Slots
+    // aren't cleared, so a thread may be unparked by a trip it isn't waiting in: harmless,
+    // as every park here is in a loop that checks the phase.
+    final AtomicReferenceArray<Thread> mWaiters;
+
+    PhaseBarrier (int parties)
+    {
+        mParties = parties;
+        mWaiters = new AtomicReferenceArray<Thread>(2 * parties);
+    }
+
+    // wait for the other parties; an interrupted wait breaks the barrier for all of them
+    void await () throws InterruptedException, BrokenBarrierException
+    {
+        final int phase = mPhase;
+        if (mBroken) throw new BrokenBarrierException();
+        int arrival = mArrived.getAndIncrement();
+        if (arrival == mParties - 1) {
+            mArrived.set(0);
+            mPhase = phase + 1;
+            unparkWaiters(phase);
+            return;
+        }
+        // store the thread before reading the phase, while the last one moves the phase
+        // before reading the threads: one of the two always sees the other
+        mWaiters.set((phase & 1) * mParties + arrival, Thread.currentThread());
+        for (int spins = SPINS; mPhase == phase; ) {
+            if (mBroken) throw new BrokenBarrierException();
+            if (Thread.interrupted()) {
+                breakBarrier();
+                throw new InterruptedException();
+            }
+            if (spins > 0) spins--;
+            else LockSupport.park(this);
+        }
+    }
+
+    // let every waiter out with a BrokenBarrierException
+    void breakBarrier ()
+    {
+        mBroken = true;
+        unparkWaiters(0);
+        unparkWaiters(1);
+    }
+
+    void unparkWaiters (int phase)
+    {
+        for (int k = (phase & 1) * mParties, end = k + mParties - 1; k < end; k++) {
+            Thread waiter = mWaiters.get(k);
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+// Per stage latency of the frame pipeline, measured with System.nanoTime() into one
+// LatencyHistogram per Stage. Each stage is recorded by a single thread (the camera thread,
+// the FlowProcessor worker or the UI thread), so recording never locks or allocates.
+// snapshot() copies everything for a reader; summary() formats p50 / p95 / p99 per stage,
+// e.g. for a periodic log dump (see isDumpDue()). The histograms cover the whole run, so
+// getFrameRate() gives the recent rate for display instead.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.util.Locale;
+
+public class PipelineTimings
+{
+    public enum Stage
+    {
+        QUEUE,          // camera callback handing the frame in to the worker picking it up
+        DECODE,         // downscaling the Y plane into the engine
+        GRADIENTS,      // E_x, E_y, E_t
+        ITERATION,      // one solver iteration (single scale solves only)
+        SOLVE,          // all the iterations, or the whole pyramid
+        FRAME,          // interval between processed frames
+        RENDER          // drawing a result (recorded by the UI)
+    }
+
+    static final Stage[] STAGES = Stage.values();
+
+    final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+    long mDumpInterval;             // 0 = no periodic dumps
+    long mLastDump;
+
+    static final long RATE_WINDOW = 1000000000L;    // getFrameRate() averages over 1 s
+    long mRateStart = Long.MIN_VALUE, mRateFrames;
+    float mFrameRate = -1;          // until the first window is complete
+
+    public PipelineTimings ()
+    {
+        for (int k = 0; k < mHistograms.length; k++) mHistograms[k] = new LatencyHistogram();
+    }
+
+    public void record (Stage stage, long nanos)
+    {
+        mHistograms[stage.ordinal()].record(nanos);
+    }
+
+    public LatencyHistogram getHistogram (Stage stage) { return mHistograms[stage.ordinal()]; }
+
+    // copy of all the histograms as they are now, into 'into' (allocated if null)
+    public PipelineTimings snapshot (PipelineTimings into)
+    {
+        if (into == null) into = new PipelineTimings();
+        for (int k = 0; k < mHistograms.length; k++) mHistograms[k].copyTo(into.mHistograms[k]);
+        return into;
+    }
+
+    public void reset ()
+    {
+        for (int k = 0; k < mHistograms.length; k++) mHistograms[k].reset();
+    }
+
+    // e.g. "DECODE n=120 p50=0.41 p95=0.52 p99=0.80 ms", one line per stage with samples
+    public String summary ()
+    {
+        StringBuilder text = new StringBuilder();
+        for (int k = 0; k < STAGES.length; k++) {
+            LatencyHistogram histogram = mHistograms[k];
+            if (histogram.getCount() == 0) continue;
+            if (text.length() > 0) text.append('\n');
+            text.append(String.format(Locale.US, "%s n=%d p50=%.2f p95=%.2f p99=%.2f max=%.2f ms",
+                    STAGES[k], histogram.getCount(), histogram.getValueAtPercentile(50) / 1e6,
+                    histogram.getValueAtPercentile(95) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+                    histogram.getMax() / 1e6));
+        }
+        return text.toString();
+    }
+
+    // dump every intervalNanos (0 = never): isDumpDue() says when, for one caller thread
+    public void setDumpInterval (long intervalNanos)
+    {
+        mDumpInterval = intervalNanos;
+        mLastDump = System.nanoTime();
+    }
+
+    public boolean isDumpDue (long now)
+    {
+        if (mDumpInterval <= 0 || now - mLastDump < mDumpInterval) return false;
+        mLastDump = now;
+        return true;
+    }
+
+    // Frames per second over the last RATE_WINDOW or so (frames counted by the FRAME
+    // histogram), for one caller thread like isDumpDue(). Before a window has passed, the
+    // rate from the median frame interval.
+    public float getFrameRate (long now)
+    {
+        long frames = getHistogram(Stage.FRAME).getCount();
+        if (mRateStart == Long.MIN_VALUE || frames < mRateFrames) {    // first call, or reset()
+            mRateStart = now;
+            mRateFrames = frames;
+        }
+        else if (now - mRateStart >= RATE_WINDOW) {
+            mFrameRate = (float) ((frames - mRateFrames) * 1e9 / (now - mRateStart));
+            mRateStart = now;
+            mRateFrames = frames;
+        }
+        if (mFrameRate >= 0) return mFrameRate;
+        long interval = getHistogram(Stage.FRAME).getValueAtPercentile(50);
+        return (interval > 0) ? (float) (1e9 / interval) : 0;
+    }
+}
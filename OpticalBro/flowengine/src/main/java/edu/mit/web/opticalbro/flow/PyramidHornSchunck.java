@@ -0,0 +1,215 @@
+// Coarse-to-fine Horn-Schunck for motions larger than a pixel or two per frame.
+// Both frames are reduced to a Gaussian pyramid (5-tap binomial blur, then every other
+// pixel). The flow is solved on the coarsest level first; each finer level starts from
+// the coarser flow upsampled (and doubled), warps the current frame back by it and only
+// has to solve for the remaining small motion. Flow grids use the same cell layout as
+// HornSchunckEngine: one value per 2x2 block of pixels, (w-1) x (h-1) per level.
+// Everything is allocated in the constructor; compute() allocates nothing.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.util.Arrays;
+
+public class PyramidHornSchunck
+{
+    static final int MIN_SIZE = 8;  // smallest image side we still build a level for
+
+    final int mLevels;
+    final int[] mW, mH;             // image size per level (level 0 is full resolution)
+    final float[][] mPrev, mCur;    // images per level
+    final float[][] mU, mV;         // flow per level, in pixels per frame
+    final float[] mEx, mEy, mEt;    // gradients of the level being solved (sized for level 0)
+    final float[] mUAvg, mVAvg;
+    final float[] mWeightX, mWeightY; // E_x / (1 + lambda * (E_x^2 + E_y^2)) etc. for the level
+    final float[] mBlur;            // scratch for the horizontal blur pass
+
+    int mIterations = 2;            // Horn-Schunck iterations on each level
+    float lambda = 5.0f;
+
+    // levels is an upper limit: we stop halving once a side would drop below MIN_SIZE
+    public PyramidHornSchunck (int width, int height, int levels)
+    {
+        if (width < 2 || height < 2)
+            throw new IllegalArgumentException("image too small " + width + " x " + height);
+        if (levels < 1)
+            throw new IllegalArgumentException("bad number of levels " + levels);
+        int n = levelCount(width, height, levels);
+        mLevels = n;
+        mW = new int[n];
+        mH = new int[n];
+        mPrev = new float[n][];
+        mCur = new float[n][];
+        mU = new float[n][];
+        mV = new float[n][];
+        for (int l = 0; l < n; l++) {
+            mW[l] = width >> l;
+            mH[l] = height >> l;
+            mPrev[l] = new float[mW[l] * mH[l]];
+            mCur[l] = new float[mW[l] * mH[l]];
+            mU[l] = new float[(mW[l] - 1) * (mH[l] - 1)];
+            mV[l] = new float[(mW[l] - 1) * (mH[l] - 1)];
+        }
+        int flowSize = (width - 1) * (height - 1);
+        mEx = new float[flowSize];
+        mEy = new float[flowSize];
+        mEt = new float[flowSize];
+        mUAvg = new float[flowSize];
+        mVAvg = new float[flowSize];
+        mWeightX = new float[flowSize];
+        mWeightY = new float[flowSize];
+        mBlur = new float[width * height];
+    }
+
+    // how many of the requested levels a width x height image gets
+    static int levelCount (int width, int height, int levels)
+    {
+        int n = 1;
+        while (n < levels && (width >> n) >= MIN_SIZE && (height >> n) >= MIN_SIZE) n++;
+        return n;
+    }
+
+    public int getLevels () { return mLevels; }
+    public int getIterations () { return mIterations; }
+    public void setIterations (int iterations) { mIterations = iterations; }
+    public float getLambda () { return lambda; }
+    public void setLambda (float lambda) { this.lambda = lambda; }
+
+    // Flow from prev to cur (both width x height grayscale), written to uOut / vOut on the
+    // (width-1) x (height-1) cell grid and scaled by fps to pixels per second like the
+    // single scale solver.
+    public void compute (int[] prev, int[] cur, float fps, float[] uOut, float[] vOut)
+    {
+        for (int k = 0; k < mPrev[0].length; k++) {
+            mPrev[0][k] = prev[k];
+            mCur[0][k] = cur[k];
+        }
+        for (int l = 1; l < mLevels; l++) {
+            downsample(mPrev[l - 1], mW[l - 1], mH[l - 1], mPrev[l], mW[l], mH[l]);
+            downsample(mCur[l - 1], mW[l - 1], mH[l - 1], mCur[l], mW[l], mH[l]);
+        }
+
+        int top = mLevels - 1;
+        Arrays.fill(mU[top], 0f);
+        Arrays.fill(mV[top], 0f);
+        for (int l = top; l >= 0; l--) {
+            if (l < top) {
+                upsampleFlow(mU[l + 1], mW[l + 1] - 1, mH[l + 1] - 1, mU[l], mW[l] - 1, mH[l] - 1);
+                upsampleFlow(mV[l + 1], mW[l + 1] - 1, mH[l + 1] - 1, mV[l], mW[l] - 1, mH[l] - 1);
+            }
+            warpedGradients(l);
+            iterate(l);
+        }
+
+        float[] u = mU[0], v = mV[0];
+        for (int k = 0; k < u.length; k++) {
+            uOut[k] = u[k] * fps;
+            vOut[k] = v[k] * fps;
+        }
+    }
+
+    // blur with [1 4 6 4 1]/16 in x and y (edges clamped), keeping every other pixel
+    void downsample (float[] src, int sw, int sh, float[] dst, int dw, int dh)
+    {
+        float[] tmp = mBlur;
+        for (int j = 0; j < sh; j++) {
+            int row = j * sw;
+            for (int i = 0; i < dw; i++) {
+                int x = 2 * i;
+                tmp[j * dw + i] = (src[row + clamp(x - 2, sw)] + src[row + clamp(x + 2, sw)]
+                        + 4 * (src[row + clamp(x - 1, sw)] + src[row + clamp(x + 1, sw)])
+                        + 6 * src[row + x]) * (1f / 16);
+            }
+        }
+        for (int j = 0; j < dh; j++) {
+            int y = 2 * j;
+            int r0 = clamp(y - 2, sh) * dw, r1 = clamp(y - 1, sh) * dw, r2 = y * dw;
+            int r3 = clamp(y + 1, sh) * dw, r4 = clamp(y + 2, sh) * dw;
+            for (int i = 0; i < dw; i++) {
+                dst[j * dw + i] = (tmp[r0 + i] + tmp[r4 + i] + 4 * (tmp[r1 + i] + tmp[r3 + i])
+                        + 6 * tmp[r2 + i]) * (1f / 16);
+            }
+        }
+    }
+
+    // bilinear resampling of a coarse flow grid onto the next finer one, doubling the values
+    static void upsampleFlow (float[] src, int sw, int sh, float[] dst, int dw, int dh)
+    {
+        for (int j = 0, k = 0; j < dh; j++) {
+            // cell centre j + 0.5 in fine pixels is (j + 0.5) / 2 in coarse pixels,
+            // i.e. coarse cell (j + 0.5) / 2 - 0.5
+            float y = (j + 0.5f) * 0.5f - 0.5f;
+            for (int i = 0; i < dw; i++, k++) {
+                float x = (i + 0.5f) * 0.5f - 0.5f;
+                dst[k] = 2 * sample(src, sw, sh, x, y);
+            }
+        }
+    }
+
+    // Gradients of level l over the 2x2x2 cube of each cell, with the current frame sampled
+    // at the corners moved by the cell's flow. E_t is linearised around that flow, so the
+    // usual update solves for the total flow: Ex*u + Ey*v + (Et - Ex*u0 - Ey*v0) = 0
+    void warpedGradients (int l)
+    {
+        final int w = mW[l], h = mH[l];
+        final int fw = w - 1, fh = h - 1;
+        final float[] prev = mPrev[l], cur = mCur[l];
+        final float[] u = mU[l], v = mV[l];
+        for (int j = 0, k = 0; j < fh; j++) {
+            for (int i = 0; i < fw; i++, k++) {
+                float du = u[k], dv = v[k];
+                float p00 = prev[j * w + i], p01 = prev[j * w + i + 1];
+                float p10 = prev[(j + 1) * w + i], p11 = prev[(j + 1) * w + i + 1];
+                float c00 = sample(cur, w, h, i + du, j + dv);
+                float c01 = sample(cur, w, h, i + 1 + du, j + dv);
+                float c10 = sample(cur, w, h, i + du, j + 1 + dv);
+                float c11 = sample(cur, w, h, i + 1 + du, j + 1 + dv);
+                float ex = (p01 + c01 + p11 + c11 - p00 - c00 - p10 - c10) * 0.25f;
+                float ey = (p10 + c10 + p11 + c11 - p00 - c00 - p01 - c01) * 0.25f;
+                float et = (c00 + c10 + c01 + c11 - p00 - p10 - p01 - p11) * 0.25f;
+                mEx[k] = ex;
+                mEy[k] = ey;
+                mEt[k] = et - ex * du - ey * dv;
+            }
+        }
+    }
+
+    // Jacobi Horn-Schunck iterations on level l, starting from the flow already there
+    void iterate (int l)
+    {
+        final int w = mW[l] - 1, h = mH[l] - 1;
+        final float[] u = mU[l], v = mV[l];
+        for (int k = 0; k < w * h; k++) {
+            float ex = mEx[k], ey = mEy[k];
+            float reciprocal = 1 / (1 + lambda * (ex * ex + ey * ey));
+            mWeightX[k] = ex * reciprocal;
+            mWeightY[k] = ey * reciprocal;
+        }
+        for (int iterations = 0; iterations < mIterations; iterations++) {
+            HornSchunckEngine.neighborAverages(u, mUAvg, w, h, 0, h);
+            HornSchunckEngine.neighborAverages(v, mVAvg, w, h, 0, h);
+            for (int k = 0; k < w * h; k++) {
+                float error = mEx[k] * mUAvg[k] + mEy[k] * mVAvg[k] + mEt[k];
+                u[k] = mUAvg[k] - mWeightX[k] * error;
+                v[k] = mVAvg[k] - mWeightY[k] * error;
+            }
+        }
+    }
+
+    // bilinear sample with coordinates clamped to the image
+    static float sample (float[] image, int w, int h, float x, float y)
+    {
+        x = Math.min(Math.max(x, 0f), w - 1);
+        y = Math.min(Math.max(y, 0f), h - 1);
+        int x0 = Math.min((int) x, w - 2), y0 = Math.min((int) y, h - 2);
+        float fx = x - x0, fy = y - y0;
+        int k = y0 * w + x0;
+        float top = image[k] + fx * (image[k + 1] - image[k]);
+        float bottom = image[k + w] + fx * (image[k + w + 1] - image[k + w]);
+        return top + fy * (bottom - top);
+    }
+
+    static int clamp (int x, int size)
+    {
+        return (x < 0) ? 0 : (x >= size ? size - 1 : x);
+    }
+}
@@ -0,0 +1,162 @@
+// Optical flow for a few rectangular regions of interest instead of the whole frame (say a
+// conveyor lane). Each region gets its own HornSchunckEngine sized to the region plus a
+// halo of pixels on every side (clipped to the image), so decoding, gradients and the
+// iterations only touch that window and the cost goes with the region areas. The halo
+// gives the smoothness averaging real neighbours at the region's edges.
+// Coordinates are in downscaled image pixels, the same as the full frame engine's; a
+// region's flow cell (x, y) is the cell between image pixels (x, y) and (x + 1, y + 1).
+
+package edu.mit.web.opticalbro.flow;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RegionFlow
+{
+    public static final class Region
+    {
+        final int mX, mY, mWidth, mHeight;  // the region, in image pixels
+        final int mLeft, mTop;              // top left of the engine's window
+        final HornSchunckEngine mEngine;
+        final int mOffsetX, mOffsetY;       // region origin inside the engine's flow grid
+        final int mCellsX, mCellsY;         // flow cells inside the region
+
+        Region (int x, int y, int width, int height, int halo, int imageWidth, int imageHeight,
+                int downscalingFactor)
+        {
+            mX = x;
+            mY = y;
+            mWidth = width;
+            mHeight = height;
+            mLeft = Math.max(0, x - halo);
+            mTop = Math.max(0, y - halo);
+            int right = Math.min(imageWidth, x + width + halo);
+            int bottom = Math.min(imageHeight, y + height + halo);
+            mEngine = new HornSchunckEngine(right - mLeft, bottom - mTop, downscalingFactor);
+            mOffsetX = x - mLeft;
+            mOffsetY = y - mTop;
+            mCellsX = Math.min(width, mEngine.getFlowWidth() - mOffsetX);
+            mCellsY = Math.min(height, mEngine.getFlowHeight() - mOffsetY);
+        }
+
+        public int getX () { return mX; }
+        public int getY () { return mY; }
+        public int getWidth () { return mWidth; }
+        public int getHeight () { return mHeight; }
+
+        // the engine for this region, to set iterations, solver, etc.
+        public HornSchunckEngine getEngine () { return mEngine; }
+
+        // flow cells covered by the region (one less than its size at the image's right or
+        // bottom edge, where there is no next pixel)
+        public int getCellsX () { return mCellsX; }
+        public int getCellsY () { return mCellsY; }
+
+        // flow at cell (x, y) of the region, 0 <= x < getCellsX(), 0 <= y < getCellsY()
+        public float getU (int x, int y)
+        {
+            return mEngine.getU()[(mOffsetY + y) * mEngine.getFlowWidth() + mOffsetX + x];
+        }
+
+        public float getV (int x, int y)
+        {
+            return mEngine.getV()[(mOffsetY + y) * mEngine.getFlowWidth() + mOffsetX + x];
+        }
+
+        // mean flow over the region (not the halo): out[0] x velocity, out[1] y velocity
+        public void getMeanFlow (float[] out)
+        {
+            final float[] u = mEngine.getU(), v = mEngine.getV();
+            final int w = mEngine.getFlowWidth();
+            float su = 0, sv = 0;
+            for (int j = 0; j < mCellsY; j++) {
+                int k = (mOffsetY + j) * w + mOffsetX;
+                for (int i = 0; i < mCellsX; i++, k++) {
+                    su += u[k];
+                    sv += v[k];
+                }
+            }
+            int n = mCellsX * mCellsY;
+            out[0] = su / n;
+            out[1] = sv / n;
+        }
+
+        // index of the region's top left camera pixel in the Y plane
+        int offset (int stride)
+        {
+            int step = mEngine.getDownscalingFactor();
+            return mTop * step * stride + mLeft * step;
+        }
+    }
+
+    final int mWidth, mHeight;      // size of the (downscaled) image
+    final int mDownscalingFactor;
+    int mHalo = 4;
+    final List<Region> mRegions = new ArrayList<Region>();
+
+    public RegionFlow (int width, int height, int downscalingFactor)
+    {
+        if (width < 2 || height < 2)
+            throw new IllegalArgumentException("image too small " + width + " x " + height);
+        mWidth = width;
+        mHeight = height;
+        mDownscalingFactor = downscalingFactor;
+    }
+
+    public int getHalo () { return mHalo; }
+
+    // extra pixels solved around each region added from now on
+    public void setHalo (int halo)
+    {
+        if (halo < 0) throw new IllegalArgumentException("negative halo " + halo);
+        mHalo = halo;
+    }
+
+    // Region of width x height image pixels with its top left at (x, y). It must lie in the
+    // image and cover at least one flow cell, so it needs a pixel to its right and below,
+    // either its own or from the halo: a region in the last row or column of the image
+    // is rejected, as getMeanFlow() would have nothing to average.
+    public Region addRegion (int x, int y, int width, int height)
+    {
+        if (x < 0 || y < 0 || width < 1 || height < 1 || x + width > mWidth || y + height > mHeight)
+            throw new IllegalArgumentException("region " + width + " x " + height + " at " + x + ", " + y
+                    + " outside " + mWidth + " x " + mHeight);
+        if (Math.min(mWidth, x + width + mHalo) - x < 2 || Math.min(mHeight, y + height + mHalo) - y < 2)
+            throw new IllegalArgumentException("region " + width + " x " + height + " at " + x + ", " + y
+                    + " covers no flow cell");
+        Region region = new Region(x, y, width, height, mHalo, mWidth, mHeight, mDownscalingFactor);
+        mRegions.add(region);
+        return region;
+    }
+
+    public void removeRegion (Region region)
+    {
+        if (mRegions.remove(region)) region.mEngine.shutdown();
+    }
+
+    public List<Region> getRegions () { return mRegions; }
+
+    // Run a frame through every region's engine; yPlane and stride as for
+    // HornSchunckEngine.compute(), covering the whole image
+    public void compute (byte[] yPlane, int stride, float fps)
+    {
+        for (int k = 0; k < mRegions.size(); k++) {
+            Region region = mRegions.get(k);
+            region.mEngine.compute(yPlane, region.offset(stride), stride, fps);
+        }
+    }
+
+    public void compute (ByteBuffer yPlane, int stride, float fps)
+    {
+        for (int k = 0; k < mRegions.size(); k++) {
+            Region region = mRegions.get(k);
+            region.mEngine.compute(yPlane, region.offset(stride), stride, fps);
+        }
+    }
+
+    public void shutdown ()
+    {
+        for (int k = 0; k < mRegions.size(); k++) mRegions.get(k).mEngine.shutdown();
+    }
+}
@@ -0,0 +1,223 @@
+// Sparse flow: instead of solving Horn-Schunck over the whole grid, estimate the flow only at
+// a grid of sample points (by default the 4 x 3 points DrawOnTop.drawArrow draws) with
+// Lucas-Kanade: the least squares solution of E_x u + E_y v + E_t = 0 over a window of
+// (2 * radius + 1)^2 cells around each point. Only the pixels of those windows are
+// decoded, with the engine's downsampling, and the gradients are the engine's 2x2x2 cube
+// gradients, so a frame costs a few thousand pixels whatever the resolution.
+// It is a HornSchunckEngine so FlowProcessor and FlowField work unchanged: getU() / getV()
+// hold each point's flow in the 3x3 cells around it (what FlowField.getAverageFlow reads)
+// and zero everywhere else. The per point results are also available directly.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class SparseLucasKanade extends HornSchunckEngine
+{
+    // below this determinant of the 2x2 normal matrix (in [greyscale_value per pixel]^4
+    // per window cell squared) the window has no texture to go on and the flow is zero
+    static final float MIN_DETERMINANT = 1f;
+
+    int mColumns, mRows;            // sample grid
+    int mRadius = 4;                // window is 2 * radius + 1 cells square
+    int mPointCount;
+    int[] mPointX, mPointY;         // sample points, in flow cells
+    int[] mLeft, mTop;              // top left image pixel of each window's patch
+    int[] mPatchWidth, mPatchHeight;
+    int[][] mPatch, mPrevPatch;     // the window's pixels, current and previous frame
+    float[] mPointU, mPointV;       // flow at the points
+    boolean mHavePrevious;
+
+    public SparseLucasKanade (int width, int height, int downscalingFactor)
+    {
+        super(width, height, downscalingFactor);
+        setGrid(4, 3);
+    }
+
+    // Columns x rows points, at the centres of that many equal tiles of the image. Points are
+    // kept off the first and last row and column, so the 3x3 cells around each one (what
+    // FlowField.getAverageFlow reads) are all in the grid, however dense the grid.
+    public void setGrid (int columns, int rows)
+    {
+        if (columns < 1 || rows < 1)
+            throw new IllegalArgumentException("bad sample grid " + columns + " x " + rows);
+        mColumns = columns;
+        mRows = rows;
+        mPointCount = columns * rows;
+        mPointX = new int[mPointCount];
+        mPointY = new int[mPointCount];
+        for (int j = 0, k = 0; j < rows; j++) {
+            for (int i = 0; i < columns; i++, k++) {
+                mPointX[k] = clampToInterior((2 * i + 1) * mWidth / (2 * columns), mFlowWidth);
+                mPointY[k] = clampToInterior((2 * j + 1) * mHeight / (2 * rows), mFlowHeight);
+            }
+        }
+        layOutWindows();
+    }
+
+    // value clamped to 1 .. size - 2, or to the grid if it is narrower than 3 cells
+    static int clampToInterior (int value, int size)
+    {
+        return Math.max(Math.min(1, size - 1), Math.min(size - 2, value));
+    }
+
+    public int getColumns () { return mColumns; }
+    public int getRows () { return mRows; }
+    public int getWindowRadius () { return mRadius; }
+
+    public void setWindowRadius (int radius)
+    {
+        if (radius < 1) throw new IllegalArgumentException("bad window radius " + radius);
+        mRadius = radius;
+        layOutWindows();
+    }
+
+    void layOutWindows ()
+    {
+        mLeft = new int[mPointCount];
+        mTop = new int[mPointCount];
+        mPatchWidth = new int[mPointCount];
+        mPatchHeight = new int[mPointCount];
+        mPatch = new int[mPointCount][];
+        mPrevPatch = new int[mPointCount][];
+        mPointU = new float[mPointCount];
+        mPointV = new float[mPointCount];
+        for (int k = 0; k < mPointCount; k++) {
+            // cells x - r .. x + r, clipped to the grid, need pixels one further right and down
+            mLeft[k] = Math.max(0, mPointX[k] - mRadius);
+            mTop[k] = Math.max(0, mPointY[k] - mRadius);
+            mPatchWidth[k] = Math.min(mFlowWidth - 1, mPointX[k] + mRadius) + 2 - mLeft[k];
+            mPatchHeight[k] = Math.min(mFlowHeight - 1, mPointY[k] + mRadius) + 2 - mTop[k];
+            mPatch[k] = new int[mPatchWidth[k] * mPatchHeight[k]];
+            mPrevPatch[k] = new int[mPatchWidth[k] * mPatchHeight[k]];
+        }
+        mHavePrevious = false;
+        Arrays.fill(u, 0);
+        Arrays.fill(v, 0);
+    }
+
+    public int getPointCount () { return mPointCount; }
+    public int getPointX (int k) { return mPointX[k]; }
+    public int getPointY (int k) { return mPointY[k]; }
+    public float getPointU (int k) { return mPointU[k]; }
+    public float getPointV (int k) { return mPointV[k]; }
+
+    @Override
+    public void compute (byte[] yPlane, int offset, int stride, float fps)
+    {
+        checkWindow(offset, stride, yPlane.length);
+        long start = (mTimings != null) ? System.nanoTime() : 0;
+        for (int k = 0; k < mPointCount; k++) decodePatch(yPlane, offset, stride, k);
+        if (mTimings != null) mTimings.record(PipelineTimings.Stage.DECODE, System.nanoTime() - start);
+        computePoints(fps);
+    }
+
+    @Override
+    public void compute (ByteBuffer yPlane, int offset, int stride, float fps)
+    {
+        checkWindow(offset, stride, yPlane.limit());
+        long start = (mTimings != null) ? System.nanoTime() : 0;
+        for (int k = 0; k < mPointCount; k++) decodePatch(yPlane, offset, stride, k);
+        if (mTimings != null) mTimings.record(PipelineTimings.Stage.DECODE, System.nanoTime() - start);
+        computePoints(fps);
+    }
+
+    void decodePatch (byte[] yPlane, int offset, int stride, int k)
+    { // the engine's decode, for the patch's pixels only
+        final int step = mDownscalingFactor, pw = mPatchWidth[k];
+        final boolean box = mDownsampling == Downsampling.BOX && step > 1;
+        final int half = step * step / 2;
+        final long reciprocal = reciprocal(step * step);
+        final int[] patch = mPatch[k];
+        for (int j = 0, out = 0; j < mPatchHeight[k]; j++) {
+            int pix = offset + (mTop[k] + j) * step * stride + mLeft[k] * step;
+            for (int i = 0; i < pw; i++, out++, pix += step) {
+                if (!box) {
+                    patch[out] = 0xFF & yPlane[pix];
+                    continue;
+                }
+                int sum = half;
+                for (int r = 0, row = pix; r < step; r++, row += stride)
+                    for (int c = 0; c < step; c++) sum += 0xFF & yPlane[row + c];
+                patch[out] = (int) ((sum * reciprocal) >>> 32);
+            }
+        }
+    }
+
+    void decodePatch (ByteBuffer yPlane, int offset, int stride, int k)
+    {
+        final int step = mDownscalingFactor, pw = mPatchWidth[k];
+        final boolean box = mDownsampling == Downsampling.BOX && step > 1;
+        final int half = step * step / 2;
+        final long reciprocal = reciprocal(step * step);
+        final int[] patch = mPatch[k];
+        for (int j = 0, out = 0; j < mPatchHeight[k]; j++) {
+            int pix = offset + (mTop[k] + j) * step * stride + mLeft[k] * step;
+            for (int i = 0; i < pw; i++, out++, pix += step) {
+                if (!box) {
+                    patch[out] = 0xFF & yPlane.get(pix);
+                    continue;
+                }
+                int sum = half;
+                for (int r = 0, row = pix; r < step; r++, row += stride)
+                    for (int c = 0; c < step; c++) sum += 0xFF & yPlane.get(row + c);
+                patch[out] = (int) ((sum * reciprocal) >>> 32);
+            }
+        }
+    }
+
+    void computePoints (float fps)
+    {
+        mFrameCount++;
+        if (mHavePrevious) {
+            long start = (mTimings != null) ? System.nanoTime() : 0;
+            for (int k = 0; k < mPointCount; k++) solvePoint(k, fps);
+            if (mTimings != null) mTimings.record(PipelineTimings.Stage.SOLVE, System.nanoTime() - start);
+        }
+        mHavePrevious = true;
+        int[][] tmp = mPrevPatch;
+        mPrevPatch = mPatch;
+        mPatch = tmp;
+    }
+
+    void solvePoint (int k, float fps)
+    { // normal equations of sum (E_x u + E_y v + E_t)^2 over the window
+        final int[] cur = mPatch[k], prev = mPrevPatch[k];
+        final int pw = mPatchWidth[k];
+        double xx = 0, xy = 0, yy = 0, xt = 0, yt = 0;
+        for (int j = 0; j < mPatchHeight[k] - 1; j++) {
+            for (int i = 0; i < pw - 1; i++) {
+                int a0 = j * pw + i, a1 = a0 + pw;
+                // the same 2x2x2 cube differences as computeGradients()
+                int ex = (cur[a0 + 1] + cur[a1 + 1] + prev[a0 + 1] + prev[a1 + 1]
+                        - cur[a0] - cur[a1] - prev[a0] - prev[a1]) >> 2;
+                int ey = (cur[a1] + cur[a1 + 1] + prev[a1] + prev[a1 + 1]
+                        - cur[a0] - cur[a0 + 1] - prev[a0] - prev[a0 + 1]) >> 2;
+                int et = (int) (fps * ((cur[a0] + cur[a1] + cur[a0 + 1] + cur[a1 + 1]
+                        - prev[a0] - prev[a1] - prev[a0 + 1] - prev[a1 + 1]) >> 2));
+                xx += ex * ex;
+                xy += ex * ey;
+                yy += ey * ey;
+                xt += ex * et;
+                yt += ey * et;
+            }
+        }
+        int cells = (pw - 1) * (mPatchHeight[k] - 1);
+        double det = xx * yy - xy * xy;
+        float pu = 0, pv = 0;
+        if (det > MIN_DETERMINANT * cells * cells) {
+            pu = (float) ((xy * yt - yy * xt) / det);
+            pv = (float) ((xy * xt - xx * yt) / det);
+        }
+        mPointU[k] = pu;
+        mPointV[k] = pv;
+        // spread over the 3x3 cells FlowField.getAverageFlow reads
+        for (int y = Math.max(0, mPointY[k] - 1); y <= Math.min(mFlowHeight - 1, mPointY[k] + 1); y++) {
+            for (int x = Math.max(0, mPointX[k] - 1); x <= Math.min(mFlowWidth - 1, mPointX[k] + 1); x++) {
+                u[y * mFlowWidth + x] = pu;
+                v[y * mFlowWidth + x] = pv;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+// Fixed set of worker threads that run one task split into horizontal stripes of rows.
+// The calling thread does stripe 0 itself and threads 1..n-1 do the rest; run() returns
+// when every stripe is done. Tasks can call barrier() to line all stripes up between
+// phases (e.g. between the neighbour average pass and the velocity update pass), so every
+// stripe must make the same number of barrier() calls and must not throw in between.
+// The barriers are PhaseBarriers, not CyclicBarriers, so nothing is allocated per run and
+// it can be used once per frame.
+
+package edu.mit.web.opticalbro.flow;
+
+import java.util.concurrent.BrokenBarrierException;
+
+public class StripeExecutor
+{
+    public interface Task
+    {
+        void runStripe (int stripe, int stripeCount);
+    }
+
+    final int mThreadCount;
+    final Thread[] mThreads;
+    final PhaseBarrier mStart;      // releases the workers into a run
+    final PhaseBarrier mPhase;      // barrier() between phases inside a task
+    final PhaseBarrier mDone;       // everyone finished the run
+    volatile Task mTask;
+    volatile boolean mShutdown;
+    volatile Throwable mFailure;
+
+    public StripeExecutor (int threadCount)
+    {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("bad thread count " + threadCount);
+        mThreadCount = threadCount;
+        mStart = new PhaseBarrier(threadCount);
+        mPhase = new PhaseBarrier(threadCount);
+        mDone = new PhaseBarrier(threadCount);
+        mThreads = new Thread[threadCount - 1];
+        for (int k = 1; k < threadCount; k++) {
+            final int stripe = k;
+            Thread thread = new Thread(new Runnable() {
+                public void run () { workerLoop(stripe); }
+            }, "StripeExecutor-" + k);
+            thread.setDaemon(true);
+            mThreads[k - 1] = thread;
+            thread.start();
+        }
+    }
+
+    public int getThreadCount () { return mThreadCount; }
+
+    // first row of a stripe when rows are split as evenly as possible
+    public static int stripeStart (int stripe, int stripeCount, int rows)
+    {
+        return (int) ((long) rows * stripe / stripeCount);
+    }
+
+    // run task on all stripes and wait for them; call from one thread at a time
+    public void run (Task task)
+    {
+        if (mShutdown) throw new IllegalStateException("executor has been shut down");
+        if (mThreadCount == 1) {
+            task.runStripe(0, 1);
+            return;
+        }
+        mTask = task;
+        mFailure = null;
+        await(mStart);
+        task.runStripe(0, mThreadCount);
+        await(mDone);
+        mTask = null;
+        Throwable failure = mFailure;
+        if (failure != null)
+            throw new IllegalStateException("stripe failed", failure);
+    }
+
+    // wait until every stripe of the current task gets here
+    public void barrier ()
+    {
+        await(mPhase);
+    }
+
+    public void shutdown ()
+    {
+        mShutdown = true;
+        for (Thread thread : mThreads) thread.interrupt();
+    }
+
+    void workerLoop (int stripe)
+    {
+        while (!mShutdown) {
+            try {
+                mStart.await();
+            } catch (InterruptedException e) {
+                return;
+            } catch (BrokenBarrierException e) {
+                return;
+            }
+            try {
+                mTask.runStripe(stripe, mThreadCount);
+            } catch (RuntimeException e) {
+                mFailure = e;   // rethrown on the calling thread by run()
+            }
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                return;
+            } catch (BrokenBarrierException e) {
+                return;
+            }
+        }
+    }
+
+    static void await (PhaseBarrier barrier)
+    {
+        try {
+            barrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for stripes", e);
+        } catch (BrokenBarrierException e) {
+            throw new IllegalStateException("stripe barrier broken", e);
+        }
+    }
+}
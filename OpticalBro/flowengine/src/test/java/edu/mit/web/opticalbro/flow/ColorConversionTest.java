@@ -0,0 +1,119 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ColorConversionTest {
+    // 2x2 frame of one colour: four Y values, then one V, U pair
+    static byte[] frame(int y, int u, int v) {
+        return new byte[] {(byte) y, (byte) y, (byte) y, (byte) y, (byte) v, (byte) u};
+    }
+
+    static int decode(int y, int u, int v) {
+        int[] rgb = new int[4];
+        ColorConversion.decodeYUV420SP(rgb, frame(y, u, v), 2, 2);
+        for (int k = 1; k < 4; k++) assertEquals(rgb[0], rgb[k]);
+        return rgb[0];
+    }
+
+    @Test
+    public void decodesGreys() throws Exception {
+        assertEquals(0xFF000000, decode(16, 128, 128));
+        assertEquals(0xFF000000, decode(0, 128, 128));      // below black clamps
+        assertEquals(0xFFFEFEFE, decode(235, 128, 128));
+        assertEquals(0xFFFFFFFF, decode(255, 128, 128));
+    }
+
+    @Test
+    public void clampsSaturatedChroma() throws Exception {
+        assertEquals(0xFF, (decode(255, 128, 255) >> 16) & 0xFF);
+        assertEquals(0xFF, decode(255, 255, 128) & 0xFF);
+        assertEquals(0, decode(16, 255, 128) & 0xFF00);     // green goes negative and clamps
+    }
+
+    @Test
+    public void tablesMatchOriginalForEveryColour() throws Exception {
+        // for each V: rows of Y = 0..255, each row going through U = 0..255 twice
+        int width = 512, height = 256;
+        byte[] yuv = new byte[width * height * 3 / 2];
+        int[] rgb = new int[width * height], expected = new int[width * height];
+        for (int j = 0; j < height; j++)
+            for (int i = 0; i < width; i++) yuv[j * width + i] = (byte) j;
+        for (int v = 0; v < 256; v++) {
+            for (int p = width * height; p < yuv.length; p += 2) {
+                yuv[p] = (byte) v;
+                yuv[p + 1] = (byte) ((p - width * height) % width / 2);
+            }
+            ColorConversion.decodeYUV420SP(rgb, yuv, width, height);
+            decodeYUV420SPOriginal(expected, yuv, width, height);
+            assertArrayEquals("V " + v, expected, rgb);
+        }
+    }
+
+    @Test
+    public void tablesMatchOriginalOnOddSizes() throws Exception {
+        Random random = new Random(1);
+        int[][] sizes = {{7, 5}, {1, 1}, {33, 2}};
+        for (int[] size : sizes) {
+            // the original reads chroma past width * height * 3 / 2 for odd sizes
+            byte[] yuv = new byte[size[0] * (size[1] + 1) * 3 / 2 + 2];
+            random.nextBytes(yuv);
+            int[] rgb = new int[size[0] * size[1]], expected = new int[size[0] * size[1]];
+            ColorConversion.decodeYUV420SP(rgb, yuv, size[0], size[1]);
+            decodeYUV420SPOriginal(expected, yuv, size[0], size[1]);
+            assertArrayEquals(size[0] + " x " + size[1], expected, rgb);
+        }
+    }
+
+    // decodeYUV420SP as it was in DrawOnTop
+    static void decodeYUV420SPOriginal(int[] rgb, byte[] yuv420sp, int width, int height) {
+        final int frameSize = width * height;
+
+        for (int j = 0, pix = 0; j < height; j++) {
+            int uvp = frameSize + (j >> 1) * width;
+            int u = 0, v = 0;
+            for (int i = 0; i < width; i++, pix++) {
+                int y = (0xFF & ((int) yuv420sp[pix])) - 16;
+                if (y < 0) y = 0;
+                if ((i & 1) == 0) {
+                    v = (0xFF & yuv420sp[uvp++]) - 128;
+                    u = (0xFF & yuv420sp[uvp++]) - 128;
+                }
+
+                int y1192 = 1192 * y;
+                int r = (y1192 + 1634 * v);
+                int g = (y1192 - 833 * v - 400 * u);
+                int b = (y1192 + 2066 * u);
+
+                if (r < 0) r = 0;
+                else if (r > 0x3FFFF) r = 0x3FFFF;
+                if (g < 0) g = 0;
+                else if (g > 0x3FFFF) g = 0x3FFFF;
+                if (b < 0) b = 0;
+                else if (b > 0x3FFFF) b = 0x3FFFF;
+
+                rgb[pix] = 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void thresholdsGradients() throws Exception {
+        int[] gradients = {-21, -20, 0, 20, 21};
+        int[] colours = {1, 2, 3, 4, 5};
+        ColorConversion.threshold(gradients, colours, 5, 1);
+        assertArrayEquals(new int[] {ColorConversion.RED, 2, 3, 4, ColorConversion.GREEN}, colours);
+    }
+
+    @Test
+    public void reshapesAndThresholdsRows() throws Exception {
+        int[][] gradients = {{-21, 0, 21}, {21, -20, -40}};
+        int[] colours = new int[6];
+        ColorConversion.reshapeTo1DandThreshold(gradients, colours, 3, 2);
+        int r = ColorConversion.RED, g = ColorConversion.GREEN;
+        assertArrayEquals(new int[] {r, 0, g, g, 0, r}, colours);
+    }
+}
@@ -0,0 +1,115 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlowFileTest {
+    static final int W = 7, H = 5;
+
+    File file;
+
+    // flow of frame f: a smooth field of up to about 100 px/s plus noise
+    static float[] field(int f, int plane) {
+        Random random = new Random(31 * f + plane);
+        float[] values = new float[W * H];
+        for (int k = 0; k < values.length; k++)
+            values[k] = (float) (60 * Math.sin(0.3 * k + f + plane)) + 40 * (random.nextFloat() - 0.5f);
+        return values;
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) file.delete();
+    }
+
+    void checkRoundTrip(int encoding, float tolerance) throws Exception {
+        file = File.createTempFile("flow", ".flow");
+        FlowFileWriter writer = new FlowFileWriter(file, W, H, encoding, 10);
+        for (int f = 0; f < 6; f++) writer.append(field(f, 0), field(f, 1), 1000L * f);
+        writer.close();
+
+        // 4 frames per mapping, frames read out of order
+        FlowFileReader reader = new FlowFileReader(file, 4 * 2 * W * H * FlowFile.bytesPerValue(encoding));
+        try {
+            assertEquals(6, reader.getFrameCount());
+            assertEquals(10, reader.getCapacity());
+            for (int f : new int[] {5, 0, 3, 4, 1, 2}) {
+                assertEquals(1000L * f, reader.getTimestamp(f));
+                float[] u = field(f, 0), v = field(f, 1);
+                for (int y = 0; y < H; y++) {
+                    for (int x = 0; x < W; x++) {
+                        assertEquals(u[y * W + x], reader.getU(f, x, y), tolerance);
+                        assertEquals(v[y * W + x], reader.getV(f, x, y), tolerance);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void float16RoundTrip() throws Exception {
+        // half floats keep 11 significant bits: within 1/16 px/s below 128
+        checkRoundTrip(FlowFile.ENCODING_FLOAT16, 1f / 16);
+    }
+
+    @Test
+    public void int8RoundTrip() throws Exception {
+        // half a step of max / 127, max being about 80 px/s here
+        checkRoundTrip(FlowFile.ENCODING_INT8, 0.5f * 80 / 127);
+    }
+
+    @Test
+    public void halfFloatConversion() throws Exception {
+        assertEquals(0x3C00, FlowFile.toHalf(1f));
+        assertEquals((short) 0xC000, FlowFile.toHalf(-2f));
+        assertEquals(0x7BFF, FlowFile.toHalf(65504f));
+        assertEquals(0x7C00, FlowFile.toHalf(1e6f));
+        assertEquals(0x0001, FlowFile.toHalf(6e-8f));      // smallest subnormal
+        assertEquals(0x3C00, FlowFile.toHalf(1.0004f));    // rounds to nearest
+        for (int h = 0; h < 0x7C00; h++)
+            assertEquals(h, FlowFile.toHalf(FlowFile.fromHalf((short) h)));
+    }
+
+    @Test
+    public void readerSeesFramesAppendedAfterOpening() throws Exception {
+        file = File.createTempFile("flow", ".flow");
+        FlowFileWriter writer = new FlowFileWriter(file, W, H, FlowFile.ENCODING_INT8, 4);
+        FlowFileReader reader = new FlowFileReader(file);
+        try {
+            writer.append(field(0, 0), field(0, 1), 0);
+            assertEquals(1, reader.getFrameCount());
+            float first = reader.getU(0, 2, 1);
+            writer.append(field(1, 0), field(1, 1), 1);
+            assertEquals(2, reader.getFrameCount());
+            assertEquals(first, reader.getU(0, 2, 1), 0f);
+            assertEquals(field(1, 1)[W + 2], reader.getV(1, 2, 1), 0.5f);
+
+            ByteBuffer plane = reader.getVPlane(1);
+            assertEquals(W * H, plane.remaining());
+            assertEquals(reader.getV(1, 2, 1), plane.get(W + 2) * reader.getScale(1), 0f);
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void writerStopsAtCapacity() throws Exception {
+        file = File.createTempFile("flow", ".flow");
+        FlowFileWriter writer = new FlowFileWriter(file, W, H, FlowFile.ENCODING_FLOAT16, 1);
+        try {
+            writer.append(field(0, 0), field(0, 1), 0);
+            writer.append(field(1, 0), field(1, 1), 1);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlowProcessorTest {
+    static final int W = 32, H = 24;
+
+    FrameBufferPool pool;
+    FlowProcessor processor;
+
+    // fill a free pool buffer with a test frame, as the camera would
+    byte[] capture(int shift) {
+        byte[] buffer = pool.acquire();
+        assertNotNull("pool ran dry", buffer);
+        byte[] frame = HornSchunckEngineTest.frameNV21(W, H, shift);
+        System.arraycopy(frame, 0, buffer, 0, frame.length);
+        return buffer;
+    }
+
+    @After
+    public void tearDown() {
+        if (processor != null) processor.stop();
+    }
+
+    @Test
+    public void publishesSnapshotOffTheCallingThread() throws Exception {
+        pool = new FrameBufferPool(3, W * H * 3 / 2);
+        processor = new FlowProcessor(new HornSchunckEngine(W, H, 1), pool, W);
+        final CountDownLatch ready = new CountDownLatch(1);
+        final Thread caller = Thread.currentThread();
+        final Thread[] worker = new Thread[1];
+        processor.setListener(new FlowProcessor.Listener() {
+            @Override
+            public void onFlowFieldReady(FlowProcessor p) {
+                worker[0] = Thread.currentThread();
+                ready.countDown();
+            }
+        });
+        assertNull(processor.getLatestFlowField());
+        processor.start();
+        processor.submit(capture(0));
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        assertNotSame(caller, worker[0]);
+
+        FlowField field = processor.getLatestFlowField();
+        assertNotNull(field);
+        assertEquals(1, field.getFrameNumber());
+        assertEquals(W - 1, field.getWidth());
+        assertEquals(H - 1, field.getHeight());
+        // nothing new published: the reader keeps the same snapshot
+        assertSame(field, processor.getLatestFlowField());
+    }
+
+    @Test
+    public void recordsQueueAndFrameTimings() throws Exception {
+        pool = new FrameBufferPool(3, W * H * 3 / 2);
+        processor = new FlowProcessor(new HornSchunckEngine(W, H, 1), pool, W);
+        PipelineTimings timings = new PipelineTimings();
+        processor.setTimings(timings);
+        assertSame(timings, processor.getEngine().getTimings());
+        final CountDownLatch ready = new CountDownLatch(1);
+        processor.setListener(new FlowProcessor.Listener() {
+            @Override
+            public void onFlowFieldReady(FlowProcessor p) {
+                ready.countDown();
+            }
+        });
+        processor.start();
+        processor.submit(capture(0));
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        final CountDownLatch second = new CountDownLatch(1);
+        processor.setListener(new FlowProcessor.Listener() {
+            @Override
+            public void onFlowFieldReady(FlowProcessor p) {
+                second.countDown();
+            }
+        });
+        processor.submit(capture(1));
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertEquals(2, timings.getHistogram(PipelineTimings.Stage.QUEUE).getCount());
+        assertEquals(2, timings.getHistogram(PipelineTimings.Stage.DECODE).getCount());
+        // an interval needs two frames
+        assertEquals(1, timings.getHistogram(PipelineTimings.Stage.FRAME).getCount());
+    }
+
+    @Test
+    public void dropsWaitingFrameWhenWorkerIsBusy() throws Exception {
+        pool = new FrameBufferPool(3, W * H * 3 / 2);
+        processor = new FlowProcessor(new HornSchunckEngine(W, H, 1), pool, W);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        processor.setListener(new FlowProcessor.Listener() {
+            @Override
+            public void onFlowFieldReady(FlowProcessor p) {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        processor.start();
+        processor.submit(capture(0));
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        // worker is stuck on frame 1: frame 2 waits, frame 3 replaces it
+        processor.submit(capture(1));
+        processor.submit(capture(2));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(3, processor.getSubmittedFrames());
+        assertEquals(1, processor.getDroppedFrames());
+        assertEquals(2, processor.getProcessedFrames());
+        assertEquals(2, processor.getLatestFlowField().getFrameNumber());
+        // the dropped frame and both processed ones are back in the pool
+        processor.stop();
+        assertEquals(3, pool.getFreeCount());
+    }
+
+    @Test
+    public void ignoresBuffersOfAPreviousPool() throws Exception {
+        // the camera's queue, fed by the first pool
+        final List<byte[]> queued = new ArrayList<byte[]>();
+        FrameBufferPool oldPool = new FrameBufferPool(2, W * H * 3 / 2);
+        oldPool.setSink(new FrameBufferPool.Sink() {
+            @Override
+            public void addBuffer(byte[] buffer) {
+                queued.add(buffer);
+            }
+        });
+        FlowProcessor old = new FlowProcessor(new HornSchunckEngine(W, H, 1), oldPool, W);
+        old.start();
+        byte[] stale = queued.remove(0);
+        // surface changed: detach the old pool, then stop its processor
+        oldPool.setSink(null);
+        old.submit(stale);
+        old.stop();
+        assertEquals(1, queued.size());
+        assertEquals(1, oldPool.getFreeCount());
+
+        pool = new FrameBufferPool(2, W * H * 3 / 2);
+        processor = new FlowProcessor(new HornSchunckEngine(W, H, 1), pool, W);
+        final CountDownLatch ready = new CountDownLatch(1);
+        processor.setListener(new FlowProcessor.Listener() {
+            @Override
+            public void onFlowFieldReady(FlowProcessor p) {
+                ready.countDown();
+            }
+        });
+        processor.start();
+        // a buffer the camera still had from the old pool is not taken
+        processor.submit(queued.remove(0));
+        assertEquals(0, processor.getSubmittedFrames());
+        processor.submit(capture(0));
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        assertEquals(1, processor.getProcessedFrames());
+    }
+}
@@ -0,0 +1,54 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+    @Test
+    public void recyclesTheSameBuffers() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(2, 16);
+        byte[] a = pool.acquire();
+        byte[] b = pool.acquire();
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNotSame(a, b);
+        assertNull(pool.acquire());
+        pool.release(a);
+        assertSame(a, pool.acquire());
+    }
+
+    @Test
+    public void sinkReceivesFreeBuffers() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(3, 16);
+        final List<byte[]> camera = new ArrayList<byte[]>();
+        byte[] held = pool.acquire();
+        pool.setSink(new FrameBufferPool.Sink() {
+            @Override
+            public void addBuffer(byte[] buffer) {
+                camera.add(buffer);
+            }
+        });
+        assertEquals(2, camera.size());
+        assertEquals(0, pool.getFreeCount());
+        pool.release(held);
+        assertEquals(3, camera.size());
+        assertSame(held, camera.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBuffer() throws Exception {
+        new FrameBufferPool(1, 16).release(new byte[16]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDoubleRelease() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(2, 16);
+        byte[] a = pool.acquire();
+        pool.release(a);
+        pool.release(a);
+    }
+}
@@ -0,0 +1,95 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameDumpTest {
+    static final int W = 8, H = 6, FRAME = W * H * 3 / 2;
+
+    File file;
+
+    // a dump of 'frames' NV21 frames where every byte of frame f is f
+    static File write(int frames, float frameRate) throws IOException {
+        File file = File.createTempFile("frames", ".nv21");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(FrameDump.header(W, H, frames, frameRate, FRAME).array());
+            byte[] frame = new byte[FRAME];
+            for (int f = 0; f < frames; f++) {
+                java.util.Arrays.fill(frame, (byte) f);
+                out.write(frame);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) file.delete();
+    }
+
+    @Test
+    public void readsHeaderAndFramesAcrossChunks() throws Exception {
+        file = write(7, 24f);
+        // 3 frames per mapping, so frames 2/3 and 5/6 sit on either side of a chunk boundary
+        FrameDump dump = new FrameDump(file, 3 * FRAME + 5);
+        try {
+            assertEquals(W, dump.getWidth());
+            assertEquals(H, dump.getHeight());
+            assertEquals(7, dump.getFrameCount());
+            assertEquals(24f, dump.getFrameRate(), 0f);
+            for (int f = 6; f >= 0; f--) {
+                ByteBuffer frame = dump.getFrame(f);
+                assertEquals(FRAME, frame.remaining());
+                assertEquals(0, frame.position());
+                assertEquals(f, frame.get(0));
+                assertEquals(f, frame.get(FRAME - 1));
+            }
+        } finally {
+            dump.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFile() throws Exception {
+        file = write(2, 30f);
+        // claim one frame more than there is
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw");
+        raf.getChannel().write(FrameDump.header(W, H, 3, 30f, FRAME), 0);
+        raf.close();
+        new FrameDump(file).close();
+    }
+
+    @Test
+    public void engineReadsMappedFrameLikeArray() throws Exception {
+        file = File.createTempFile("frames", ".nv21");
+        FileOutputStream out = new FileOutputStream(file);
+        byte[] a = HornSchunckEngineTest.frameNV21(W, H, 0), b = HornSchunckEngineTest.frameNV21(W, H, 1);
+        out.write(FrameDump.header(W, H, 2, 30f, FRAME).array());
+        out.write(a);
+        out.write(b);
+        out.close();
+        HornSchunckEngine fromArray = new HornSchunckEngine(W, H, 1);
+        HornSchunckEngine fromDump = new HornSchunckEngine(W, H, 1);
+        FrameDump dump = new FrameDump(file);
+        try {
+            fromArray.compute(a, W, 30f);
+            fromArray.compute(b, W, 30f);
+            fromDump.compute(dump.getFrame(0), W, 30f);
+            fromDump.compute(dump.getFrame(1), W, 30f);
+        } finally {
+            dump.close();
+        }
+        assertArrayEquals(fromArray.getU(), fromDump.getU(), 0f);
+        assertArrayEquals(fromArray.getV(), fromDump.getV(), 0f);
+    }
+}
@@ -0,0 +1,111 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameRecorderTest {
+    static final int W = 16, H = 12;
+
+    File file;
+
+    @After
+    public void tearDown() {
+        if (file != null) file.delete();
+    }
+
+    @Test
+    public void recordsDownscaledFramesReadableAsDump() throws Exception {
+        file = File.createTempFile("recording", ".nv21");
+        FrameRecorder recorder = new FrameRecorder(file, W, H, 2, 30f, 10, 4);
+        recorder.start();
+        byte[][] frames = new byte[5][];
+        for (int f = 0; f < frames.length; f++) {
+            frames[f] = HornSchunckEngineTest.frameNV21(W, H, f);
+            while (!recorder.record(frames[f], W)) Thread.sleep(1);    // wait for a free slot
+        }
+        recorder.stop();
+        assertEquals(5, recorder.getWrittenFrames());
+
+        FrameDump dump = new FrameDump(file);
+        try {
+            assertEquals(W / 2, dump.getWidth());
+            assertEquals(H / 2, dump.getHeight());
+            assertEquals(5, dump.getFrameCount());
+            assertEquals(30f, dump.getFrameRate(), 0f);
+            for (int f = 0; f < frames.length; f++) {
+                ByteBuffer frame = dump.getFrame(f);
+                for (int j = 0; j < H / 2; j++)
+                    for (int i = 0; i < W / 2; i++)
+                        assertEquals(frames[f][2 * j * W + 2 * i], frame.get(j * (W / 2) + i));
+            }
+        } finally {
+            dump.close();
+        }
+    }
+
+    @Test
+    public void boxRecordingReplaysAsTheEngineSawIt() throws Exception {
+        file = File.createTempFile("recording", ".nv21");
+        FrameRecorder recorder = new FrameRecorder(file, W, H, 4, 30f, 10, 4);
+        recorder.setDownsampling(HornSchunckEngine.Downsampling.BOX);
+        byte[] frame = HornSchunckEngineTest.frameNV21(W, H, 1);
+        for (int k = 0; k < W * H; k++) frame[k] = (byte) (k * 37);     // no two blocks alike
+        recorder.start();
+        assertTrue(recorder.record(frame, W));
+        recorder.stop();
+
+        HornSchunckEngine live = new HornSchunckEngine(W / 4, H / 4, 4);
+        live.setDownsampling(HornSchunckEngine.Downsampling.BOX);
+        live.decode(frame, 0, W);
+        FrameDump dump = new FrameDump(file);
+        try {
+            HornSchunckEngine replay = new HornSchunckEngine(W / 4, H / 4, 1);
+            replay.decode(dump.getFrame(0), 0, W / 4);
+            assertArrayEquals(live.mGrayscaleData, replay.mGrayscaleData);
+        } finally {
+            dump.close();
+        }
+    }
+
+    @Test
+    public void dropsFramesWhenRingIsFullWithoutBlocking() throws Exception {
+        file = File.createTempFile("recording", ".nv21");
+        // no writer running, so nothing leaves the ring
+        FrameRecorder recorder = new FrameRecorder(file, W, H, 1, 30f, 10, 3);
+        byte[] frame = HornSchunckEngineTest.frameNV21(W, H, 0);
+        for (int f = 0; f < 5; f++) assertEquals(f < 3, recorder.record(frame, W));
+        assertEquals(3, recorder.getRecordedFrames());
+        assertEquals(2, recorder.getDroppedFrames());
+
+        // the writer drains what was accepted
+        recorder.start();
+        recorder.stop();
+        assertEquals(3, recorder.getWrittenFrames());
+        FrameDump dump = new FrameDump(file);
+        try {
+            assertEquals(3, dump.getFrameCount());
+        } finally {
+            dump.close();
+        }
+    }
+
+    @Test
+    public void dropsFramesPastTheFileCapacity() throws Exception {
+        file = File.createTempFile("recording", ".nv21");
+        FrameRecorder recorder = new FrameRecorder(file, W, H, 1, 30f, 2, 8);
+        recorder.start();
+        byte[] frame = HornSchunckEngineTest.frameNV21(W, H, 0);
+        int accepted = 0;
+        for (int f = 0; f < 6; f++) if (recorder.record(frame, W)) accepted++;
+        recorder.stop();
+        assertEquals(2, accepted);
+        assertTrue(recorder.isFull());
+        assertEquals(4, recorder.getDroppedFrames());
+        assertEquals(2, recorder.getWrittenFrames());
+    }
+}
@@ -0,0 +1,57 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameRingTest {
+    @Test
+    public void rotatesWithoutCopying() throws Exception {
+        FrameRing ring = new FrameRing(3, 4);
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.get(0)[0]);     // nothing yet: zero frames
+        int[][] buffers = new int[5][];
+        for (int f = 0; f < 5; f++) {
+            int[] next = ring.next();
+            assertNotSame(ring.get(0), next);
+            assertNotSame(ring.get(1), next);
+            next[0] = f;
+            ring.commit();
+            buffers[f] = next;
+            assertSame(next, ring.get(0));
+        }
+        assertEquals(3, ring.available());
+        for (int age = 0; age < 3; age++) {
+            assertEquals(4 - age, ring.get(age)[0]);
+            assertSame(buffers[4 - age], ring.get(age));
+        }
+        // the oldest buffer is the one reused
+        assertSame(buffers[2], ring.next());
+        ring.clear();
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.get(0)[0]);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsAgeBeyondRing() throws Exception {
+        new FrameRing(2, 1).get(2);
+    }
+
+    @Test
+    public void engineKeepsFrameHistory() throws Exception {
+        int w = 16, h = 12;
+        HornSchunckEngine two = new HornSchunckEngine(w, h, 1);
+        HornSchunckEngine four = new HornSchunckEngine(w, h, 1);
+        four.setFrameHistory(4);
+        assertEquals(4, four.getFrameHistory());
+        for (int f = 0; f < 5; f++) {
+            two.compute(HornSchunckEngineTest.frame(w, h, f, 8), w, 15f);
+            four.compute(HornSchunckEngineTest.frame(w, h, f, 8), w, 15f);
+        }
+        assertArrayEquals(two.getU(), four.getU(), 0f);
+        for (int age = 0; age < 4; age++) {
+            byte[] y = HornSchunckEngineTest.frame(w, h, 4 - age, 8);
+            for (int k = 0; k < w * h; k++) assertEquals(0xFF & y[k], four.getFrame(age)[k]);
+        }
+    }
+}
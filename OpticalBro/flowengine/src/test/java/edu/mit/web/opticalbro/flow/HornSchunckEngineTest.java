@@ -0,0 +1,640 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the flat-array engine against the original jagged-array code from DrawOnTop.onDraw.
+ */
+public class HornSchunckEngineTest {
+    static final int W = 40, H = 30;
+    static final float FPS = 15f;
+
+    // random texture shifted right by 'shift' pixels, as a Y plane
+    static byte[] frame(int width, int height, int shift, long seed) {
+        Random random = new Random(seed);
+        int[] row = new int[width + 64];
+        for (int i = 0; i < row.length; i++) row[i] = random.nextInt(256);
+        byte[] y = new byte[width * height];
+        for (int j = 0; j < height; j++)
+            for (int i = 0; i < width; i++)
+                y[j * width + i] = (byte) ((row[(i - shift + 32 + j) % row.length] + 7 * j) & 0xFF);
+        return y;
+    }
+
+    // same, padded out to a full YUV420SP frame with neutral chroma
+    static byte[] frameNV21(int width, int height, int shift) {
+        byte[] yuv = new byte[width * height * 3 / 2];
+        System.arraycopy(frame(width, height, shift, 42), 0, yuv, 0, width * height);
+        java.util.Arrays.fill(yuv, width * height, yuv.length, (byte) 128);
+        return yuv;
+    }
+
+    @Test
+    public void matchesOriginalDrawOnTopSolver() throws Exception {
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, 1);
+        Reference reference = new Reference(W, H);
+        for (int f = 0; f < 3; f++) {
+            byte[] y = frame(W, H, f, 42);
+            engine.compute(y, W, FPS);
+            reference.compute(y, FPS);
+            for (int j = 0; j < H - 1; j++) {
+                for (int i = 0; i < W - 1; i++) {
+                    int k = j * (W - 1) + i;
+                    assertEquals(reference.E_x[j][i], engine.getEx()[k]);
+                    assertEquals(reference.E_y[j][i], engine.getEy()[k]);
+                    assertEquals(reference.E_t[j][i], engine.getEt()[k]);
+                    // the engine multiplies by a cached E / denominator instead of dividing,
+                    // which can move the last bit or so
+                    assertEquals(reference.u[j][i], engine.getU()[k], 1e-5f * (1 + Math.abs(reference.u[j][i])));
+                    assertEquals(reference.v[j][i], engine.getV()[k], 1e-5f * (1 + Math.abs(reference.v[j][i])));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void downscalingSamplesEveryNthRowAndColumn() throws Exception {
+        int factor = 4;
+        byte[] y = new byte[W * factor * H * factor];
+        for (int j = 0; j < H; j++)
+            for (int i = 0; i < W; i++)
+                y[j * factor * W * factor + i * factor] = (byte) (i + j);
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, factor);
+        engine.compute(y, W * factor, FPS);
+        engine.compute(y, W * factor, FPS);   // static scene: no temporal change
+        for (int k = 0; k < engine.getFlowWidth() * engine.getFlowHeight(); k++) {
+            assertEquals(1, engine.getEx()[k]);
+            assertEquals(1, engine.getEy()[k]);
+            assertEquals(0, engine.getEt()[k]);
+        }
+    }
+
+    @Test
+    public void stripedIterationsMatchSingleThreaded() throws Exception {
+        HornSchunckEngine serial = new HornSchunckEngine(W, H, 1);
+        for (int threads : new int[] {2, 3, 8}) {
+            HornSchunckEngine striped = new HornSchunckEngine(W, H, 1);
+            striped.setThreadCount(threads);
+            try {
+                for (int f = 0; f < 3; f++) {
+                    byte[] y = frame(W, H, f, 7);
+                    serial.compute(y, W, FPS);
+                    striped.compute(y, W, FPS);
+                    assertArrayEquals(serial.getU(), striped.getU(), 0f);
+                    assertArrayEquals(serial.getV(), striped.getV(), 0f);
+                }
+            } finally {
+                striped.shutdown();
+            }
+            serial = new HornSchunckEngine(W, H, 1);
+        }
+    }
+
+    // mean u over the middle of the flow grid
+    static float meanU(HornSchunckEngine engine) {
+        double sum = 0;
+        int n = 0;
+        int fw = engine.getFlowWidth(), fh = engine.getFlowHeight();
+        for (int j = fh / 4; j < 3 * fh / 4; j++)
+            for (int i = fw / 4; i < 3 * fw / 4; i++, n++)
+                sum += engine.getU()[j * fw + i];
+        return (float) (sum / n);
+    }
+
+    @Test
+    public void warmStartConvergesWithFewerIterations() throws Exception {
+        int w = 96, h = 72;
+        HornSchunckEngine cold = new HornSchunckEngine(w, h, 1);
+        HornSchunckEngine warm = new HornSchunckEngine(w, h, 1);
+        warm.setIterations(2);
+        warm.setWarmStart(true, 1.0f);
+        warm.setTrackResiduals(true);
+        cold.setTrackResiduals(true);
+        for (int f = 0; f < 8; f++) {
+            // steady motion of 1 pixel per frame
+            byte[] y = PyramidHornSchunckTest.toBytes(PyramidHornSchunckTest.pattern(w, h, f, 0));
+            cold.compute(y, w, FPS);
+            warm.compute(y, w, FPS);
+        }
+        // after a few frames 2 warm iterations beat 4 cold ones
+        assertTrue("warm " + meanU(warm) + " cold " + meanU(cold),
+                Math.abs(meanU(warm) - FPS) < Math.abs(meanU(cold) - FPS));
+        // and the iterations are changing the field far less
+        assertTrue(warm.getResiduals()[1] < cold.getResiduals()[1]);
+        assertTrue(cold.getResiduals()[3] < cold.getResiduals()[0]);
+    }
+
+    @Test
+    public void stripedResidualsMatchSingleThreaded() throws Exception {
+        HornSchunckEngine serial = new HornSchunckEngine(W, H, 1);
+        HornSchunckEngine striped = new HornSchunckEngine(W, H, 1);
+        serial.setTrackResiduals(true);
+        striped.setTrackResiduals(true);
+        striped.setThreadCount(3);
+        try {
+            for (int f = 0; f < 2; f++) {
+                serial.compute(frame(W, H, f, 3), W, FPS);
+                striped.compute(frame(W, H, f, 3), W, FPS);
+            }
+            for (int k = 0; k < 4; k++)
+                assertEquals(serial.getResiduals()[k], striped.getResiduals()[k], 1e-3f * serial.getResiduals()[k]);
+        } finally {
+            striped.shutdown();
+        }
+    }
+
+    // distance of the flow after 'sweeps' iterations from the same solver run to convergence
+    static double distanceFromConverged(HornSchunckEngine engine, int sweeps) {
+        engine.setIterations(400);
+        engine.computeFlow();
+        float[] u = engine.getU().clone(), v = engine.getV().clone();
+        engine.setIterations(sweeps);
+        engine.computeFlow();
+        double sum = 0;
+        for (int k = 0; k < u.length; k++)
+            sum += Math.abs(engine.getU()[k] - u[k]) + Math.abs(engine.getV()[k] - v[k]);
+        return sum / u.length;
+    }
+
+    @Test
+    public void overRelaxationConvergesFasterThanGaussSeidel() throws Exception {
+        int w = 64, h = 48;
+        HornSchunckEngine gaussSeidel = new HornSchunckEngine(w, h, 1);
+        HornSchunckEngine sor = new HornSchunckEngine(w, h, 1);
+        gaussSeidel.setSolver(HornSchunckEngine.Solver.RED_BLACK_SOR);
+        gaussSeidel.setRelaxation(1.0f);
+        sor.setSolver(HornSchunckEngine.Solver.RED_BLACK_SOR);
+        sor.setRelaxation(1.8f);
+        for (int f = 0; f < 2; f++) {
+            byte[] y = PyramidHornSchunckTest.toBytes(PyramidHornSchunckTest.pattern(w, h, f, 0));
+            gaussSeidel.compute(y, w, FPS);
+            sor.compute(y, w, FPS);
+        }
+        // both head for the same solution
+        gaussSeidel.setIterations(2000);
+        gaussSeidel.computeFlow();
+        float[] u = gaussSeidel.getU().clone();
+        sor.setIterations(2000);
+        sor.computeFlow();
+        assertArrayEquals(u, sor.getU(), 1e-2f);
+
+        double gaussSeidelError = distanceFromConverged(gaussSeidel, 16);
+        double sorError = distanceFromConverged(sor, 16);
+        assertTrue("sor " + sorError + " gauss-seidel " + gaussSeidelError, sorError < 0.25 * gaussSeidelError);
+    }
+
+    @Test
+    public void relaxationDefaultsToOnePointEight() throws Exception {
+        assertEquals(1.8f, new HornSchunckEngine(W, H, 1).getRelaxation(), 0f);
+    }
+
+    @Test
+    public void sorInteriorFastPathMatchesCheckedAverages() throws Exception {
+        for (int[] size : new int[][] {{W, H}, {W + 1, H + 1}, {2, 5}}) {
+            int w = size[0], h = size[1];
+            HornSchunckEngine engine = new HornSchunckEngine(w, h, 1);
+            engine.setSolver(HornSchunckEngine.Solver.RED_BLACK_SOR);
+            for (int f = 0; f < 2; f++) engine.compute(frame(w, h, f, 5), w, FPS);
+            int fw = engine.getFlowWidth(), fh = engine.getFlowHeight();
+            float[] u = engine.getU().clone(), v = engine.getV().clone();
+            float omega = engine.getRelaxation();
+            for (int color = 0; color < 2; color++) {
+                engine.relaxRows(0, fh, color);
+                // every cell through the bounds checked average
+                for (int j = 0; j < fh; j++) {
+                    for (int i = (j + color) & 1; i < fw; i += 2) {
+                        int k = j * fw + i;
+                        float ua = HornSchunckEngine.neighborAverage(u, i, j, fw, fh);
+                        float va = HornSchunckEngine.neighborAverage(v, i, j, fw, fh);
+                        float error = engine.E_x[k] * ua + engine.E_y[k] * va + engine.E_t[k];
+                        u[k] += omega * (ua - engine.mWeightX[k] * error - u[k]);
+                        v[k] += omega * (va - engine.mWeightY[k] * error - v[k]);
+                    }
+                }
+                assertArrayEquals(w + " x " + h, u, engine.getU(), 0f);
+                assertArrayEquals(w + " x " + h, v, engine.getV(), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void stripedSorMatchesSingleThreaded() throws Exception {
+        HornSchunckEngine serial = new HornSchunckEngine(W, H, 1);
+        HornSchunckEngine striped = new HornSchunckEngine(W, H, 1);
+        serial.setSolver(HornSchunckEngine.Solver.RED_BLACK_SOR);
+        striped.setSolver(HornSchunckEngine.Solver.RED_BLACK_SOR);
+        striped.setThreadCount(3);
+        try {
+            for (int f = 0; f < 2; f++) {
+                serial.compute(frame(W, H, f, 5), W, FPS);
+                striped.compute(frame(W, H, f, 5), W, FPS);
+            }
+            // each colour only reads the other one, so the order within a pass doesn't matter
+            assertArrayEquals(serial.getU(), striped.getU(), 0f);
+            assertArrayEquals(serial.getV(), striped.getV(), 0f);
+        } finally {
+            striped.shutdown();
+        }
+    }
+
+    @Test
+    public void interiorStencilMatchesPerPixelAverage() throws Exception {
+        Random random = new Random(7);
+        int[][] sizes = {{39, 29}, {2, 5}, {5, 2}, {1, 4}, {3, 3}};
+        for (int[] size : sizes) {
+            int w = size[0], h = size[1];
+            float[] a = new float[w * h], average = new float[w * h];
+            for (int k = 0; k < a.length; k++) a[k] = (random.nextFloat() - 0.5f) * 40;
+            // in two bands, as the stripes do
+            HornSchunckEngine.neighborAverages(a, average, w, h, 0, h / 2);
+            HornSchunckEngine.neighborAverages(a, average, w, h, h / 2, h);
+            for (int j = 0; j < h; j++)
+                for (int i = 0; i < w; i++)
+                    assertEquals(w + "x" + h + " at " + i + "," + j,
+                            HornSchunckEngine.neighborAverage(a, i, j, w, h), average[j * w + i], 0f);
+        }
+    }
+
+    @Test
+    public void averageKeepsSubPixelFlow() throws Exception {
+        // the old int accumulator turned every |average| below 1 into 0
+        float[] a = new float[4 * 4], average = new float[4 * 4];
+        java.util.Arrays.fill(a, 0.75f);
+        HornSchunckEngine.neighborAverages(a, average, 4, 4, 0, 4);
+        for (float x : average) assertEquals(0.75f, x, 0f);
+    }
+
+    @Test
+    public void fixedPointStaysCloseToFloatSolver() throws Exception {
+        int w = 64, h = 48;
+        HornSchunckEngine floating = new HornSchunckEngine(w, h, 1);
+        HornSchunckEngine fixed = new HornSchunckEngine(w, h, 1);
+        fixed.setSolver(HornSchunckEngine.Solver.FIXED_POINT);
+        floating.setIterations(16);
+        fixed.setIterations(16);
+        for (int f = 0; f < 4; f++) {
+            byte[] y = frame(w, h, 2 * f, 11);
+            floating.compute(y, w, FPS);
+            fixed.compute(y, w, FPS);
+            int fw = floating.getFlowWidth(), fh = floating.getFlowHeight();
+            float maxError = 0, maxEdgeError = 0, maxInteriorError = 0, maxFlow = 0;
+            for (int k = 0; k < floating.getU().length; k++) {
+                float error = Math.max(Math.abs(fixed.getU()[k] - floating.getU()[k]),
+                        Math.abs(fixed.getV()[k] - floating.getV()[k]));
+                int i = k % fw, j = k / fw;
+                if (i == 0 || j == 0 || i == fw - 1 || j == fh - 1) maxEdgeError = Math.max(maxEdgeError, error);
+                else maxInteriorError = Math.max(maxInteriorError, error);
+                maxError = Math.max(maxError, error);
+                maxFlow = Math.max(maxFlow, Math.abs(floating.getU()[k]));
+            }
+            // Q16 rounding adds up to a few 2^-16 per iteration; allow well under 0.01 px/s
+            assertTrue("frame " + f + " max error " + maxError, maxError < 0.01f);
+            // edge cells round like the interior, so they don't drift further
+            assertTrue("frame " + f + " max edge error " + maxEdgeError + ", interior " + maxInteriorError,
+                    maxEdgeError <= maxInteriorError && maxEdgeError < 0.001f);
+            if (f > 0) assertTrue(maxFlow > 1f);
+        }
+    }
+
+    @Test
+    public void fixedPointAveragesRoundToNearestEverywhere() throws Exception {
+        int w = 7, h = 5;
+        Random random = new Random(3);
+        int[] array = new int[w * h], average = new int[w * h];
+        for (int k = 0; k < array.length; k++) array[k] = random.nextInt(201) - 100;
+        HornSchunckEngine.neighborAverages(array, average, w, h, 0, h);
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int sum = 0, count = 0;
+                if (i > 0) { sum += array[j * w + i - 1]; count++; }
+                if (j > 0) { sum += array[(j - 1) * w + i]; count++; }
+                if (i < w - 1) { sum += array[j * w + i + 1]; count++; }
+                if (j < h - 1) { sum += array[(j + 1) * w + i]; count++; }
+                int expected = (int) Math.floor((double) sum / count + 0.5);
+                assertEquals(i + ", " + j + ": " + sum + " / " + count, expected, average[j * w + i]);
+            }
+        }
+    }
+
+    @Test
+    public void fixedPointSaturatesAtHighFrameRates() throws Exception {
+        int w = 64, h = 48;
+        float limit = (float) HornSchunckEngine.MAX_VELOCITY_Q / (1 << HornSchunckEngine.FIXED_SHIFT);
+        // 1000 fps: E_t up to 2.5e5 and flow up to ~7500 px/s, still in range;
+        // 1e6 fps: far past it, where products used to wrap around
+        for (float fps : new float[] {1000f, 1e6f}) {
+            HornSchunckEngine floating = new HornSchunckEngine(w, h, 1);
+            HornSchunckEngine fixed = new HornSchunckEngine(w, h, 1);
+            fixed.setSolver(HornSchunckEngine.Solver.FIXED_POINT);
+            for (int f = 0; f < 3; f++) {
+                byte[] y = frame(w, h, 2 * f, 11);
+                floating.compute(y, w, fps);
+                fixed.compute(y, w, fps);
+            }
+            for (int k = 0; k < fixed.getU().length; k++) {
+                float u = fixed.getU()[k], v = fixed.getV()[k];
+                assertTrue(fps + " fps, " + k + ": " + u + ", " + v, Math.abs(u) <= limit && Math.abs(v) <= limit);
+                if (fps < 1e6f) {
+                    assertEquals(floating.getU()[k], u, 0.01f * (1 + Math.abs(floating.getU()[k])));
+                    assertEquals(floating.getV()[k], v, 0.01f * (1 + Math.abs(floating.getV()[k])));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stripedFixedPointMatchesSingleThreaded() throws Exception {
+        HornSchunckEngine serial = new HornSchunckEngine(W, H, 1);
+        HornSchunckEngine striped = new HornSchunckEngine(W, H, 1);
+        serial.setSolver(HornSchunckEngine.Solver.FIXED_POINT);
+        striped.setSolver(HornSchunckEngine.Solver.FIXED_POINT);
+        striped.setThreadCount(3);
+        try {
+            for (int f = 0; f < 2; f++) {
+                serial.compute(frame(W, H, f, 9), W, FPS);
+                striped.compute(frame(W, H, f, 9), W, FPS);
+            }
+            assertArrayEquals(serial.getU(), striped.getU(), 0f);
+            assertArrayEquals(serial.getV(), striped.getV(), 0f);
+        } finally {
+            striped.shutdown();
+        }
+    }
+
+    @Test
+    public void cachedWeightsFollowLambda() throws Exception {
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, 1);
+        HornSchunckEngine fresh = new HornSchunckEngine(W, H, 1);
+        fresh.setLambda(20f);
+        for (int f = 0; f < 2; f++) {
+            engine.compute(frame(W, H, f, 13), W, FPS);
+            fresh.compute(frame(W, H, f, 13), W, FPS);
+        }
+        // same gradients, new lambda: the weights from lambda = 5 must not be reused
+        engine.setLambda(20f);
+        engine.computeFlow();
+        assertArrayEquals(fresh.getU(), engine.getU(), 0f);
+        assertArrayEquals(fresh.getV(), engine.getV(), 0f);
+    }
+
+    @Test
+    public void boxDownsamplingAveragesBlocks() throws Exception {
+        int step = 3, w = 10, h = 7, stride = w * step + 2;
+        byte[] y = frame(stride, h * step, 0, 5);
+        HornSchunckEngine engine = new HornSchunckEngine(w, h, step);
+        engine.setDownsampling(HornSchunckEngine.Downsampling.BOX);
+        engine.compute(y, stride, FPS);
+        HornSchunckEngine mapped = new HornSchunckEngine(w, h, step);
+        mapped.setDownsampling(HornSchunckEngine.Downsampling.BOX);
+        mapped.compute(java.nio.ByteBuffer.wrap(y), stride, FPS);
+        for (int j = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int sum = 0;
+                for (int r = 0; r < step; r++)
+                    for (int c = 0; c < step; c++) sum += 0xFF & y[(j * step + r) * stride + i * step + c];
+                // the decoded frame is the previous one once compute() returns
+                assertEquals(Math.round(sum / 9f), engine.mPrevGrayscaleData[j * w + i]);
+                assertEquals(Math.round(sum / 9f), mapped.mPrevGrayscaleData[j * w + i]);
+            }
+        }
+    }
+
+    @Test
+    public void boxDownsamplingTracksSubBlockMotion() throws Exception {
+        // fine texture moving half a downscaled pixel per frame: point sampling sees
+        // unrelated pixels from frame to frame, the block means move smoothly
+        int step = 4, w = 48, h = 36;
+        HornSchunckEngine point = new HornSchunckEngine(w, h, step);
+        HornSchunckEngine box = new HornSchunckEngine(w, h, step);
+        box.setDownsampling(HornSchunckEngine.Downsampling.BOX);
+        for (HornSchunckEngine engine : new HornSchunckEngine[] {point, box}) {
+            engine.setIterations(50);
+            for (int f = 0; f < 2; f++) engine.compute(frame(w * step, h * step, 2 * f, 9), w * step, FPS);
+        }
+        float expected = FPS / 2;
+        assertTrue("box " + meanU(box) + " point " + meanU(point),
+                Math.abs(meanU(box) - expected) < Math.abs(meanU(point) - expected));
+    }
+
+    @Test
+    public void computeAtScalesByCaptureInterval() throws Exception {
+        HornSchunckEngine timed = new HornSchunckEngine(W, H, 1);
+        HornSchunckEngine rated = new HornSchunckEngine(W, H, 1);
+        long t = 5000000000L;
+        timed.computeAt(frame(W, H, 0, 3), W, t);
+        assertEquals(HornSchunckEngine.DEFAULT_FRAME_RATE, timed.getFrameRate(), 0f);
+        // the next frame was dropped: 200 ms between the two compared
+        timed.computeAt(frame(W, H, 2, 3), W, t + 200000000L);
+        assertEquals(5f, timed.getFrameRate(), 1e-4f);
+        rated.compute(frame(W, H, 0, 3), W, HornSchunckEngine.DEFAULT_FRAME_RATE);
+        rated.compute(frame(W, H, 2, 3), W, timed.getFrameRate());
+        assertArrayEquals(rated.getEt(), timed.getEt());
+        assertArrayEquals(rated.getU(), timed.getU(), 0f);
+    }
+
+    @Test
+    public void smoothsFrameInterval() throws Exception {
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, 1);
+        engine.setIntervalSmoothing(0.5f);
+        byte[] y = frame(W, H, 0, 3);
+        engine.computeAt(y, W, 0);
+        engine.computeAt(y, W, 100000000L);     // first interval is taken as it is
+        assertEquals(10f, engine.getFrameRate(), 1e-4f);
+        engine.computeAt(y, W, 300000000L);     // 0.5 * 100 ms + 0.5 * 200 ms
+        assertEquals(1 / 0.15f, engine.getFrameRate(), 1e-4f);
+        engine.computeAt(y, W, 300000000L);     // no time passed: keep the interval
+        assertEquals(1 / 0.15f, engine.getFrameRate(), 1e-4f);
+    }
+
+    @Test
+    public void clampsBackToBackFrameInterval() throws Exception {
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, 1);
+        engine.setNominalFrameRate(15f);
+        engine.computeAt(frame(W, H, 0, 3), W, 0);
+        // after a stall two frames arrive 1 us apart: scaled as if 1/4 period apart
+        engine.computeAt(frame(W, H, 1, 3), W, 1000);
+        assertEquals(60f, engine.getFrameRate(), 1e-3f);
+        for (float u : engine.getU()) assertTrue(Math.abs(u) < 100);
+        // and a long gap as at most 4 periods
+        engine.computeAt(frame(W, H, 2, 3), W, 5000000000L);
+        assertEquals(15f / 4, engine.getFrameRate(), 1e-3f);
+    }
+
+    @Test
+    public void slowDeviceIsScaledByItsOwnInterval() throws Exception {
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, 1);
+        engine.setNominalFrameRate(15f);
+        // asked for 15 fps but only keeps up with 2.5: within 2 frames the rate follows
+        long interval = 400000000L;
+        for (int f = 0; f < 4; f++) engine.computeAt(frame(W, H, f, 3), W, f * interval);
+        assertEquals(2.5f, engine.getFrameRate(), 1e-3f);
+        for (int f = 4; f < 20; f++) {
+            engine.computeAt(frame(W, H, f, 3), W, f * interval);
+            assertEquals(2.5f, engine.getFrameRate(), 1e-3f);
+        }
+        // back to back frames are still clamped, now to 1/4 of the recent interval
+        engine.computeAt(frame(W, H, 20, 3), W, 19 * interval + 1000);
+        assertEquals(10f, engine.getFrameRate(), 1e-3f);
+        // and recovers when the device speeds up to the nominal rate
+        long t = 19 * interval + 1000;
+        for (int f = 21; f < 30; f++) engine.computeAt(frame(W, H, f, 3), W, t += 1000000000L / 15);
+        assertEquals(15f, engine.getFrameRate(), 1e-2f);
+    }
+
+    // smooth pattern translated by (dx, dy) pixels, sampled without aliasing
+    static byte[] smoothFrame(int width, int height, double dx, double dy) {
+        byte[] y = new byte[width * height];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                double x = i - dx, yy = j - dy;
+                double value = 128 + 40 * Math.sin(x * 0.31 + 0.7) + 30 * Math.sin((x + yy) * 0.23)
+                        + 25 * Math.cos(yy * 0.41 - x * 0.13);
+                y[j * width + i] = (byte) Math.round(value);
+            }
+        }
+        return y;
+    }
+
+    // mean endpoint error in pixels per frame over the middle of the grid
+    static double endpointError(HornSchunckEngine engine, double trueU, double trueV) {
+        int fw = engine.getFlowWidth(), fh = engine.getFlowHeight();
+        double sum = 0;
+        int n = 0;
+        for (int j = fh / 4; j < 3 * fh / 4; j++) {
+            for (int i = fw / 4; i < 3 * fw / 4; i++, n++) {
+                double du = engine.getU()[j * fw + i] / FPS - trueU, dv = engine.getV()[j * fw + i] / FPS - trueV;
+                sum += Math.sqrt(du * du + dv * dv);
+            }
+        }
+        return sum / n;
+    }
+
+    @Test
+    public void centredTemporalStencilsAreMoreAccurate() throws Exception {
+        int w = 80, h = 60;
+        double[] error = new double[3];
+        HornSchunckEngine.TemporalStencil[] stencils = HornSchunckEngine.TemporalStencil.values();
+        for (int s = 0; s < stencils.length; s++) {
+            HornSchunckEngine engine = new HornSchunckEngine(w, h, 1);
+            engine.setTemporalStencil(stencils[s]);
+            assertTrue(engine.getFrameHistory() >= stencils[s].getFrames());
+            engine.setWarmStart(true, 1f);
+            for (int f = 0; f < 30; f++) engine.compute(smoothFrame(w, h, 0.5 * f, 0.25 * f), w, FPS);
+            error[s] = endpointError(engine, 0.5, 0.25);
+        }
+        assertTrue("3 frames " + error[1] + " vs 2 " + error[0], error[1] < 0.6 * error[0]);
+        assertTrue("5 frames " + error[2] + " vs 2 " + error[0], error[2] < 0.6 * error[0]);
+    }
+
+    @Test
+    public void centredStencilWaitsForAFullRing() throws Exception {
+        HornSchunckEngine twoFrame = new HornSchunckEngine(W, H, 1);
+        HornSchunckEngine fiveFrame = new HornSchunckEngine(W, H, 1);
+        fiveFrame.setTemporalStencil(HornSchunckEngine.TemporalStencil.FIVE_FRAME);
+        fiveFrame.setWarmStart(true, 1f);
+        // no zero-filled history: the first four frames use the last two frames, and
+        // start from zero flow
+        for (int f = 0; f < 4; f++) {
+            byte[] y = frame(W, H, f, 5);
+            twoFrame.compute(y, W, FPS);
+            fiveFrame.compute(y, W, FPS);
+            assertArrayEquals("frame " + f, twoFrame.getEt(), fiveFrame.getEt());
+            assertArrayEquals("frame " + f, twoFrame.getU(), fiveFrame.getU(), 0f);
+        }
+        // the fifth has the whole stencil
+        HornSchunckEngine cold = new HornSchunckEngine(W, H, 1);
+        cold.setTemporalStencil(HornSchunckEngine.TemporalStencil.FIVE_FRAME);
+        for (int f = 0; f < 5; f++) cold.compute(frame(W, H, f, 5), W, FPS);
+        fiveFrame.compute(frame(W, H, 4, 5), W, FPS);
+        assertArrayEquals(cold.getEt(), fiveFrame.getEt());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void frameHistoryCoversStencil() throws Exception {
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, 1);
+        engine.setTemporalStencil(HornSchunckEngine.TemporalStencil.FIVE_FRAME);
+        engine.setFrameHistory(4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortStride() throws Exception {
+        new HornSchunckEngine(W, H, 2).compute(new byte[W * H * 4], W, FPS);
+    }
+
+    // the solver as it was written inline in DrawOnTop.onDraw
+    static class Reference {
+        final int mImageWidth, mImageHeight;
+        int[][] mGrayscaleData, mPrevGrayscaleData;
+        int[][] E_x, E_y, E_t;
+        float[][] u, v, uAvg, vAvg;
+        float lambda = 5.0f;
+
+        Reference(int width, int height) {
+            mImageWidth = width;
+            mImageHeight = height;
+            mGrayscaleData = new int[height][width];
+            mPrevGrayscaleData = new int[height][width];
+            E_x = new int[height - 1][width - 1];
+            E_y = new int[height - 1][width - 1];
+            E_t = new int[height - 1][width - 1];
+        }
+
+        void compute(byte[] yuv, float fps) {
+            for (int j = 0; j < mImageHeight; j++)
+                for (int i = 0; i < mImageWidth; i++)
+                    mGrayscaleData[j][i] = 0xFF & yuv[j * mImageWidth + i];
+            for (int j = 0; j < mImageHeight - 1; j++) {
+                for (int i = 0; i < mImageWidth - 1; i++) {
+                    E_x[j][i] = (mPrevGrayscaleData[j][i+1] + mGrayscaleData[j][i+1]
+                            + mPrevGrayscaleData[j+1][i+1] + mGrayscaleData[j+1][i+1]
+                            - mPrevGrayscaleData[j][i] - mGrayscaleData[j][i]
+                            - mPrevGrayscaleData[j+1][i] - mGrayscaleData[j+1][i])>>2;
+                    E_y[j][i] = (mPrevGrayscaleData[j+1][i] + mGrayscaleData[j+1][i]
+                            + mPrevGrayscaleData[j+1][i+1] + mGrayscaleData[j+1][i+1]
+                            - mPrevGrayscaleData[j][i] - mGrayscaleData[j][i]
+                            - mPrevGrayscaleData[j][i+1] - mGrayscaleData[j][i+1])>>2;
+                    E_t[j][i] = (int)(fps*((mGrayscaleData[j][i] + mGrayscaleData[j+1][i]
+                            + mGrayscaleData[j][i+1] + mGrayscaleData[j+1][i+1]
+                            - mPrevGrayscaleData[j][i] - mPrevGrayscaleData[j+1][i]
+                            - mPrevGrayscaleData[j][i+1] - mPrevGrayscaleData[j+1][i+1])>>2));
+                }
+            }
+            u = new float[mImageHeight-1][mImageWidth-1];
+            v = new float[mImageHeight-1][mImageWidth-1];
+            uAvg = new float[mImageHeight-1][mImageWidth-1];
+            vAvg = new float[mImageHeight-1][mImageWidth-1];
+            for (int iterations = 0; iterations < 4; iterations++) {
+                for (int j = 0; j < mImageHeight-1; j++) {
+                    for (int i = 0; i < mImageWidth-1; i++) {
+                        uAvg[j][i] = getNeighborAverage(u, i, j, mImageWidth-1, mImageHeight-1);
+                        vAvg[j][i] = getNeighborAverage(v, i, j, mImageWidth-1, mImageHeight-1);
+                    }
+                }
+                for (int j = 0; j < mImageHeight-1; j++) {
+                    for (int i = 0; i < mImageWidth-1; i++) {
+                        float adjustment = (E_x[j][i] * uAvg[j][i] + E_y[j][i] * vAvg[j][i] + E_t[j][i]) / (1 + lambda * ((float)Math.pow(E_x[j][i], 2) + (float)Math.pow(E_y[j][i],2)));
+                        u[j][i] = uAvg[j][i] - E_x[j][i] * adjustment;
+                        v[j][i] = vAvg[j][i] - E_y[j][i] * adjustment;
+                    }
+                }
+            }
+            for (int j = 0; j < mImageHeight; j++)
+                System.arraycopy(mGrayscaleData[j], 0, mPrevGrayscaleData[j], 0, mImageWidth);
+        }
+
+        // the original summed into an int, truncating the flow; the engine sums in float
+        static float getNeighborAverage(float[][] array, int i, int j, int width, int height) {
+            int neighborCount = 0;
+            float neighborSum = 0;
+            if (i > 0) { neighborCount++; neighborSum += array[j][i-1]; }
+            if (j > 0) { neighborCount++; neighborSum += array[j-1][i]; }
+            if (i < width - 1) { neighborCount++; neighborSum += array[j][i+1]; }
+            if (j < height - 1) { neighborCount++; neighborSum += array[j+1][i]; }
+            return neighborSum / neighborCount;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverValuesToWithinTheirResolution() throws Exception {
+        for (long value = 0; value < 100000; value += 7) checkBucket(value);
+        for (long value = 1; value < LatencyHistogram.MAX_VALUE; value *= 3) checkBucket(value);
+        checkBucket(LatencyHistogram.MAX_VALUE);
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    static void checkBucket(long value) {
+        int b = LatencyHistogram.bucket(value);
+        long lowest = LatencyHistogram.lowest(b), width = LatencyHistogram.width(b);
+        assertTrue(value + " in bucket " + b, lowest <= value && value < lowest + width);
+        assertTrue(width <= Math.max(1, lowest / LatencyHistogram.SUB_COUNT));
+    }
+
+    @Test
+    public void percentilesOfUniformValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int k = 1; k <= 1000; k++) histogram.record(k * 1000L);   // 1 us .. 1 ms
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean(), 1e-6);
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 32);
+        assertEquals(950000, histogram.getValueAtPercentile(95), 950000 / 32);
+        assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 32);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void copyIsIndependent() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram(), copy = new LatencyHistogram();
+        histogram.record(10);
+        histogram.copyTo(copy);
+        histogram.record(20);
+        assertEquals(1, copy.getCount());
+        assertEquals(10, copy.getValueAtPercentile(99));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+}
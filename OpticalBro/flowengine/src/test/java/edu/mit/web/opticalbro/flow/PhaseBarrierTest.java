@@ -0,0 +1,120 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PhaseBarrierTest {
+    static final int TRIPS = 20000;
+
+    @Test
+    public void keepsThreadsInLockstep() throws Exception {
+        for (int parties = 2; parties <= 4; parties++) {
+            final int n = parties;
+            final PhaseBarrier barrier = new PhaseBarrier(n);
+            final int[] trips = new int[n];
+            final AtomicReference<String> failure = new AtomicReference<String>();
+            Thread[] threads = new Thread[n - 1];
+            for (int t = 1; t < n; t++) {
+                final int me = t;
+                threads[t - 1] = new Thread(new Runnable() {
+                    public void run() {
+                        lockstep(barrier, trips, me, failure);
+                    }
+                });
+                threads[t - 1].start();
+            }
+            lockstep(barrier, trips, 0, failure);
+            for (Thread thread : threads) thread.join(10000);
+            assertNull(failure.get());
+            for (int t = 0; t < n; t++) assertEquals(TRIPS, trips[t]);
+        }
+    }
+
+    // every thread counts its trips; after each trip all counts must agree
+    static void lockstep(PhaseBarrier barrier, int[] trips, int me, AtomicReference<String> failure) {
+        try {
+            for (int k = 0; k < TRIPS; k++) {
+                trips[me]++;
+                barrier.await();
+                for (int t = 0; t < trips.length; t++) {
+                    if (trips[t] < k + 1) failure.compareAndSet(null, "thread " + t + " behind on trip " + k);
+                }
+                barrier.await();
+            }
+        } catch (Exception e) {
+            failure.compareAndSet(null, e.toString());
+        }
+    }
+
+    @Test
+    public void interruptBreaksTheBarrierForEveryone() throws Exception {
+        final PhaseBarrier barrier = new PhaseBarrier(3);
+        final AtomicInteger broken = new AtomicInteger(), interrupted = new AtomicInteger();
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < 2; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (BrokenBarrierException e) {
+                        broken.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        interrupted.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        while (barrier.mArrived.get() < 2) Thread.sleep(1);
+        threads[0].interrupt();
+        for (Thread thread : threads) thread.join(10000);
+        assertEquals(1, interrupted.get());
+        assertEquals(1, broken.get());
+        try {
+            barrier.await();
+            fail("awaited a broken barrier");
+        } catch (BrokenBarrierException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void tripsDoNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) return;
+
+        final PhaseBarrier barrier = new PhaseBarrier(2);
+        final long[] allocated = new long[2];
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final int[] trips = new int[2];
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                lockstep(barrier, trips, 1, failure);   // warm up
+                allocated[1] = measure(barrier, trips, 1, failure);
+            }
+        });
+        other.start();
+        lockstep(barrier, trips, 0, failure);
+        allocated[0] = measure(barrier, trips, 0, failure);
+        other.join(10000);
+        assertNull(failure.get());
+        // CyclicBarrier allocates at least a Generation (16 bytes) per trip
+        for (long bytes : allocated) assertTrue(bytes + " bytes", bytes < TRIPS);
+    }
+
+    static long measure(PhaseBarrier barrier, int[] trips, int me, AtomicReference<String> failure) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        lockstep(barrier, trips, me, failure);
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+}
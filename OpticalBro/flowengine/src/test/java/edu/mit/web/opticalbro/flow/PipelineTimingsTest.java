@@ -0,0 +1,114 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PipelineTimingsTest {
+    static final int W = 24, H = 18;
+
+    @Test
+    public void engineRecordsEachStage() throws Exception {
+        for (int threads = 1; threads <= 2; threads++) {
+            HornSchunckEngine engine = new HornSchunckEngine(W, H, 1);
+            PipelineTimings timings = new PipelineTimings();
+            engine.setTimings(timings);
+            engine.setThreadCount(threads);
+            engine.setIterations(5);
+            for (int f = 0; f < 3; f++) engine.compute(HornSchunckEngineTest.frame(W, H, f, 1), W, 15f);
+            engine.shutdown();
+            assertEquals(3, timings.getHistogram(PipelineTimings.Stage.DECODE).getCount());
+            assertEquals(3, timings.getHistogram(PipelineTimings.Stage.GRADIENTS).getCount());
+            assertEquals(3, timings.getHistogram(PipelineTimings.Stage.SOLVE).getCount());
+            assertEquals(15, timings.getHistogram(PipelineTimings.Stage.ITERATION).getCount());
+            assertEquals(0, timings.getHistogram(PipelineTimings.Stage.RENDER).getCount());
+        }
+    }
+
+    @Test
+    public void stripedIterationsAreTimedUntilEveryStripeIsDone() throws Exception {
+        // the second stripe is slow: every iteration, the last one included, takes as long
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, 1) {
+            @Override
+            double updateRows(int j0, int j1) {
+                if (j0 > 0) {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.updateRows(j0, j1);
+            }
+        };
+        PipelineTimings timings = new PipelineTimings();
+        engine.setTimings(timings);
+        engine.setThreadCount(2);
+        engine.setIterations(3);
+        try {
+            engine.compute(HornSchunckEngineTest.frame(W, H, 0, 1), W, 15f);
+        } finally {
+            engine.shutdown();
+        }
+        LatencyHistogram iterations = timings.getHistogram(PipelineTimings.Stage.ITERATION);
+        assertEquals(3, iterations.getCount());
+        assertTrue(iterations.getValueAtPercentile(0) >= 19000000L);
+    }
+
+    @Test
+    public void histogramCoversAbout36Minutes() throws Exception {
+        assertEquals((1L << 41) - 1, LatencyHistogram.MAX_VALUE);
+        assertTrue(LatencyHistogram.MAX_VALUE / 60e9 > 36);
+    }
+
+    @Test
+    public void frameRateFollowsTheLastSecond() throws Exception {
+        PipelineTimings timings = new PipelineTimings();
+        long second = 1000000000L, now = 5 * second;
+        for (int f = 0; f < 30; f++) timings.record(PipelineTimings.Stage.FRAME, second / 30);
+        // no window yet: the median interval
+        assertEquals(30f, timings.getFrameRate(now), 1f);
+        for (int s = 0; s < 10; s++) {
+            for (int f = 0; f < 30; f++) timings.record(PipelineTimings.Stage.FRAME, second / 30);
+            now += second;
+            assertEquals(30f, timings.getFrameRate(now), 0.01f);
+        }
+        // the device slows down to 10 fps: the lifetime median still says 30
+        for (int f = 0; f < 10; f++) timings.record(PipelineTimings.Stage.FRAME, second / 10);
+        now += second;
+        assertEquals(10f, timings.getFrameRate(now), 0.01f);
+        assertEquals(second / 30, timings.getHistogram(PipelineTimings.Stage.FRAME).getValueAtPercentile(50),
+                second / 30 / 10);
+        // within a window the last rate stays
+        timings.record(PipelineTimings.Stage.FRAME, second / 10);
+        assertEquals(10f, timings.getFrameRate(now + second / 2), 0.01f);
+        // a reset starts a new window
+        timings.reset();
+        assertEquals(10f, timings.getFrameRate(now + second), 0.01f);
+        for (int f = 0; f < 20; f++) timings.record(PipelineTimings.Stage.FRAME, second / 20);
+        assertEquals(20f, timings.getFrameRate(now + 2 * second), 0.01f);
+    }
+
+    @Test
+    public void snapshotAndSummary() throws Exception {
+        PipelineTimings timings = new PipelineTimings();
+        timings.record(PipelineTimings.Stage.DECODE, 2000000);
+        PipelineTimings snapshot = timings.snapshot(null);
+        timings.record(PipelineTimings.Stage.DECODE, 4000000);
+        assertEquals(1, snapshot.getHistogram(PipelineTimings.Stage.DECODE).getCount());
+        assertEquals("DECODE n=1 p50=2.00 p95=2.00 p99=2.00 max=2.00 ms", snapshot.summary());
+        assertSame(snapshot, timings.snapshot(snapshot));
+        assertEquals(2, snapshot.getHistogram(PipelineTimings.Stage.DECODE).getCount());
+    }
+
+    @Test
+    public void dumpsAtTheInterval() throws Exception {
+        PipelineTimings timings = new PipelineTimings();
+        long now = System.nanoTime();
+        assertFalse(timings.isDumpDue(now + 1000000000000L));    // off by default
+        timings.setDumpInterval(1000);
+        assertTrue(timings.isDumpDue(now + 1000000));
+        assertFalse(timings.isDumpDue(now + 1000500));
+        assertTrue(timings.isDumpDue(now + 1001000));
+    }
+}
@@ -0,0 +1,97 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PyramidHornSchunckTest {
+    static final int W = 96, H = 72;
+
+    // smooth pattern translated by (dx, dy) pixels, as a grayscale image
+    static int[] pattern(int width, int height, double dx, double dy) {
+        int[] image = new int[width * height];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                double x = i - dx, y = j - dy;
+                double value = 128 + 40 * Math.sin(2 * Math.PI * x / 23) + 40 * Math.sin(2 * Math.PI * y / 19)
+                        + 30 * Math.sin(2 * Math.PI * (x + y) / 31);
+                image[j * width + i] = (int) Math.round(value);
+            }
+        }
+        return image;
+    }
+
+    // mean flow over the middle half of the grid, in pixels per frame
+    static float meanInterior(float[] flow, int fw, int fh) {
+        double sum = 0;
+        int n = 0;
+        for (int j = fh / 4; j < 3 * fh / 4; j++)
+            for (int i = fw / 4; i < 3 * fw / 4; i++, n++)
+                sum += flow[j * fw + i];
+        return (float) (sum / n);
+    }
+
+    @Test
+    public void levelsAreLimitedByImageSize() throws Exception {
+        assertEquals(4, new PyramidHornSchunck(96, 72, 4).getLevels());
+        assertEquals(4, new PyramidHornSchunck(80, 64, 10).getLevels()); // 80x64 .. 10x8
+        assertEquals(1, new PyramidHornSchunck(12, 12, 3).getLevels());
+    }
+
+    @Test
+    public void recoversLargeTranslationBetterThanSingleScale() throws Exception {
+        int fw = W - 1, fh = H - 1;
+        int[] prev = pattern(W, H, 0, 0);
+        int[] cur = pattern(W, H, 4, 0);
+        float[] u = new float[fw * fh], v = new float[fw * fh];
+
+        PyramidHornSchunck pyramid = new PyramidHornSchunck(W, H, 4);
+        pyramid.setIterations(10);
+        pyramid.compute(prev, cur, 1f, u, v);
+        float pyramidU = meanInterior(u, fw, fh);
+        float pyramidV = meanInterior(v, fw, fh);
+
+        // the single scale solver with the same total number of iterations
+        PyramidHornSchunck single = new PyramidHornSchunck(W, H, 1);
+        single.setIterations(40);
+        single.compute(prev, cur, 1f, u, v);
+        float singleU = meanInterior(u, fw, fh);
+
+        assertEquals(4f, pyramidU, 1f);
+        assertEquals(0f, pyramidV, 0.5f);
+        assertTrue("pyramid " + pyramidU + " vs single scale " + singleU,
+                Math.abs(pyramidU - 4f) < Math.abs(singleU - 4f));
+    }
+
+    @Test
+    public void engineScalesPyramidFlowByFps() throws Exception {
+        HornSchunckEngine engine = new HornSchunckEngine(W, H, 1);
+        engine.setPyramid(3, 10);
+        assertEquals(3, engine.getPyramidLevels());
+        engine.compute(toBytes(pattern(W, H, 0, 0)), W, 10f);
+        engine.compute(toBytes(pattern(W, H, 0, 2)), W, 10f);
+        float v = meanInterior(engine.getV(), W - 1, H - 1);
+        assertEquals(20f, v, 5f);   // 2 pixels per frame at 10 fps
+        engine.setPyramid(1, 0);
+        assertEquals(1, engine.getPyramidLevels());
+    }
+
+    @Test
+    public void clampedLevelCountKeepsThePyramid() throws Exception {
+        HornSchunckEngine engine = new HornSchunckEngine(64, 48, 1);
+        engine.setPyramid(8, 2);    // 64 x 48 only halves twice before a side drops below 8
+        assertEquals(3, engine.getPyramidLevels());
+        PyramidHornSchunck pyramid = engine.mPyramid;
+        engine.setPyramid(8, 4);
+        assertSame(pyramid, engine.mPyramid);
+        assertEquals(4, pyramid.getIterations());
+        engine.setPyramid(2, 4);
+        assertEquals(2, engine.getPyramidLevels());
+    }
+
+    static byte[] toBytes(int[] image) {
+        byte[] bytes = new byte[image.length];
+        for (int k = 0; k < image.length; k++) bytes[k] = (byte) image[k];
+        return bytes;
+    }
+}
@@ -0,0 +1,106 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RegionFlowTest {
+    static final int W = 40, H = 30;
+    static final float FPS = 15f;
+
+    @Test
+    public void regionSeesTheSameGradientsAsTheFullFrame() throws Exception {
+        int step = 2, stride = W * step;
+        HornSchunckEngine full = new HornSchunckEngine(W, H, step);
+        RegionFlow regions = new RegionFlow(W, H, step);
+        regions.setHalo(3);
+        RegionFlow.Region region = regions.addRegion(10, 8, 12, 9);
+        for (int f = 0; f < 2; f++) {
+            byte[] y = HornSchunckEngineTest.frame(stride, H * step, 2 * f, 3);
+            full.compute(y, stride, FPS);
+            regions.compute(java.nio.ByteBuffer.wrap(y), stride, FPS);
+        }
+        HornSchunckEngine engine = region.getEngine();
+        assertEquals(12 + 2 * 3, engine.getWidth());
+        assertEquals(9 + 2 * 3, engine.getHeight());
+        for (int j = 0; j < engine.getFlowHeight(); j++) {
+            for (int i = 0; i < engine.getFlowWidth(); i++) {
+                int k = j * engine.getFlowWidth() + i, kFull = (j + 5) * full.getFlowWidth() + i + 7;
+                assertEquals(full.getEx()[kFull], engine.getEx()[k]);
+                assertEquals(full.getEy()[kFull], engine.getEy()[k]);
+                assertEquals(full.getEt()[kFull], engine.getEt()[k]);
+            }
+        }
+    }
+
+    @Test
+    public void haloIsClippedAtTheImageEdge() throws Exception {
+        RegionFlow regions = new RegionFlow(W, H, 1);
+        RegionFlow.Region corner = regions.addRegion(W - 6, 0, 6, 5);
+        assertEquals(6 + regions.getHalo(), corner.getEngine().getWidth());
+        assertEquals(5 + regions.getHalo(), corner.getEngine().getHeight());
+        // no pixel to the right of the last column
+        assertEquals(5, corner.getCellsX());
+        assertEquals(5, corner.getCellsY());
+    }
+
+    @Test
+    public void reportsFlowPerRegion() throws Exception {
+        // the left half of the picture moves right a pixel per frame, the right half is still
+        RegionFlow regions = new RegionFlow(W, H, 1);
+        RegionFlow.Region moving = regions.addRegion(4, 8, 12, 12);
+        RegionFlow.Region still = regions.addRegion(26, 8, 10, 12);
+        for (RegionFlow.Region region : regions.getRegions()) region.getEngine().setIterations(50);
+        byte[] background = HornSchunckEngineTest.frame(W, H, 0, 21);
+        for (int f = 0; f < 2; f++) {
+            byte[] y = background.clone();
+            byte[] shifted = HornSchunckEngineTest.frame(W, H, f, 21);
+            for (int j = 0; j < H; j++) System.arraycopy(shifted, j * W, y, j * W, W / 2);
+            regions.compute(y, W, FPS);
+        }
+        float[] flow = new float[2];
+        moving.getMeanFlow(flow);
+        assertTrue("moving " + flow[0], flow[0] > FPS / 4);
+        still.getMeanFlow(flow);
+        assertEquals(0f, flow[0], 1e-6f);
+        assertEquals(0f, flow[1], 1e-6f);
+        regions.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRegionOutsideImage() throws Exception {
+        new RegionFlow(W, H, 1).addRegion(30, 0, 11, 5);
+    }
+
+    @Test
+    public void rejectsRegionsWithoutFlowCells() throws Exception {
+        RegionFlow regions = new RegionFlow(W, H, 1);
+        int[][] empty = {{W - 1, 0, 1, 5}, {0, H - 1, 5, 1}, {W - 1, H - 1, 1, 1}};
+        for (int[] r : empty) {
+            try {
+                regions.addRegion(r[0], r[1], r[2], r[3]);
+                fail("region at " + r[0] + ", " + r[1]);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        // one pixel short of the edge leaves one cell, with a finite mean
+        RegionFlow.Region last = regions.addRegion(W - 2, H - 2, 1, 1);
+        assertEquals(1, last.getCellsX());
+        assertEquals(1, last.getCellsY());
+        regions.compute(HornSchunckEngineTest.frame(W, H, 0, 21), W, FPS);
+        float[] flow = new float[2];
+        last.getMeanFlow(flow);
+        assertFalse(Float.isNaN(flow[0]) || Float.isNaN(flow[1]));
+        // without a halo a single pixel has no neighbour to take a gradient with
+        regions.setHalo(0);
+        try {
+            regions.addRegion(4, 4, 1, 1);
+            fail("1 x 1 region without a halo");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, regions.getRegions().size());
+        regions.shutdown();
+    }
+}
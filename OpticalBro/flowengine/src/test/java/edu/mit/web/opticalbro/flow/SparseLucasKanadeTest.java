@@ -0,0 +1,113 @@
+package edu.mit.web.opticalbro.flow;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SparseLucasKanadeTest {
+    static final int W = 80, H = 60;
+    static final float FPS = 15f;
+
+    @Test
+    public void defaultGridIsTheArrowGrid() throws Exception {
+        SparseLucasKanade sparse = new SparseLucasKanade(W, H, 1);
+        assertEquals(12, sparse.getPointCount());
+        // drawArrow: x = W/8, W/8 + W/4, ...; y = H/6, H/6 + H/3, ...
+        int[] xs = {10, 30, 50, 70}, ys = {10, 30, 50};
+        for (int j = 0, k = 0; j < 3; j++) {
+            for (int i = 0; i < 4; i++, k++) {
+                assertEquals(xs[i], sparse.getPointX(k));
+                assertEquals(ys[j], sparse.getPointY(k));
+            }
+        }
+        sparse.setGrid(8, 6);
+        assertEquals(48, sparse.getPointCount());
+        assertEquals(5, sparse.getPointX(0));
+        assertEquals(75, sparse.getPointX(7));
+    }
+
+    @Test
+    public void solvesOverTheDenseGradients() throws Exception {
+        HornSchunckEngine dense = new HornSchunckEngine(W, H, 1);
+        SparseLucasKanade sparse = new SparseLucasKanade(W, H, 1);
+        sparse.setWindowRadius(3);
+        for (int f = 0; f < 2; f++) {
+            byte[] y = HornSchunckEngineTest.frame(W, H, f, 17);
+            dense.compute(y, W, FPS);
+            sparse.compute(y, W, FPS);
+        }
+        int fw = dense.getFlowWidth();
+        for (int k = 0; k < sparse.getPointCount(); k++) {
+            double xx = 0, xy = 0, yy = 0, xt = 0, yt = 0;
+            for (int j = sparse.getPointY(k) - 3; j <= sparse.getPointY(k) + 3; j++) {
+                for (int i = sparse.getPointX(k) - 3; i <= sparse.getPointX(k) + 3; i++) {
+                    int ex = dense.getEx()[j * fw + i], ey = dense.getEy()[j * fw + i], et = dense.getEt()[j * fw + i];
+                    xx += ex * ex;
+                    xy += ex * ey;
+                    yy += ey * ey;
+                    xt += ex * et;
+                    yt += ey * et;
+                }
+            }
+            double det = xx * yy - xy * xy;
+            assertEquals((xy * yt - yy * xt) / det, sparse.getPointU(k), 1e-4);
+            assertEquals((xy * xt - xx * yt) / det, sparse.getPointV(k), 1e-4);
+        }
+    }
+
+    @Test
+    public void tracksTranslationAndFillsArrowCells() throws Exception {
+        SparseLucasKanade sparse = new SparseLucasKanade(W, H, 2);
+        sparse.setDownsampling(HornSchunckEngine.Downsampling.BOX);
+        for (int f = 0; f < 2; f++)
+            sparse.compute(HornSchunckEngineTest.frameNV21(W * 2, H * 2, 2 * f), W * 2, FPS);
+        int fw = sparse.getFlowWidth();
+        float[] flow = new float[2];
+        FlowField field = new FlowField(fw, sparse.getFlowHeight());
+        field.copyFrom(sparse, 1, FPS);
+        for (int k = 0; k < sparse.getPointCount(); k++) {
+            // one downscaled pixel per frame to the right
+            assertEquals(FPS, sparse.getPointU(k), FPS * 0.2f);
+            assertEquals(0f, sparse.getPointV(k), FPS * 0.2f);
+            field.getAverageFlow(sparse.getPointX(k), sparse.getPointY(k), flow);
+            assertEquals(sparse.getPointU(k), flow[0], 1e-5f);
+            assertEquals(sparse.getPointV(k), flow[1], 1e-5f);
+        }
+        // nothing between the points
+        assertEquals(0f, sparse.getU()[0], 0f);
+        assertEquals(0f, sparse.getV()[20 * fw + 20], 0f);
+    }
+
+    @Test
+    public void gridAsDenseAsTheFlowFieldStaysOffItsEdges() throws Exception {
+        SparseLucasKanade sparse = new SparseLucasKanade(W, H, 1);
+        int fw = sparse.getFlowWidth(), fh = sparse.getFlowHeight();
+        sparse.setGrid(fw, fh);
+        for (int f = 0; f < 2; f++) sparse.compute(HornSchunckEngineTest.frame(W, H, f, 17), W, FPS);
+        FlowField field = new FlowField(fw, fh);
+        field.copyFrom(sparse, 1, FPS);
+        float[] flow = new float[2];
+        for (int k = 0; k < sparse.getPointCount(); k++) {
+            int x = sparse.getPointX(k), y = sparse.getPointY(k);
+            assertTrue(k + ": " + x, x >= 1 && x <= fw - 2);
+            assertTrue(k + ": " + y, y >= 1 && y <= fh - 2);
+            field.getAverageFlow(x, y, flow);   // as drawArrow does
+        }
+        assertEquals(fw - 2, sparse.getPointX(sparse.getPointCount() - 1));
+        assertEquals(fh - 2, sparse.getPointY(sparse.getPointCount() - 1));
+    }
+
+    @Test
+    public void averageFlowIsClippedAtTheCorner() throws Exception {
+        FlowField field = new FlowField(4, 3);
+        for (int k = 0; k < 12; k++) field.u[k] = k;
+        float[] flow = new float[2];
+        field.getAverageFlow(0, 0, flow);
+        assertEquals((0 + 1 + 4 + 5) / 4f, flow[0], 0f);
+        field.getAverageFlow(3, 2, flow);
+        assertEquals((6 + 7 + 10 + 11) / 4f, flow[0], 0f);
+        field.getAverageFlow(1, 1, flow);
+        assertEquals((0 + 1 + 2 + 4 + 5 + 6 + 8 + 9 + 10) / 9f, flow[0], 1e-6f);
+        assertEquals(0f, flow[1], 0f);
+    }
+}